@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+
+import io.github.lukehutch.quickunzip.QuickUnzip.Strategy;
+import io.github.lukehutch.quickunzip.SizeClassStats.SizeClass;
+
+/**
+ * The shape of a zipfile, computed in one pass over the central directory before extraction (without reading any
+ * entry data), and the extraction strategy that suits it.
+ */
+class ArchiveProfile {
+    /** Zipfiles with at most this many entries are extracted serially, if they are also small. */
+    private static final int SERIAL_MAX_ENTRIES = 16;
+
+    /** Zipfiles with at most this many bytes of uncompressed data are extracted serially, if they have few entries. */
+    private static final long SERIAL_MAX_BYTES = 4L * 1024 * 1024;
+
+    /** The minimum number of entries for batched extraction of small files. */
+    private static final int BATCHED_MIN_ENTRIES = 1000;
+
+    private final long tinyMaxSize;
+    private final long hugeMinSize;
+
+    private int numEntries;
+    private int numDirEntries;
+    private final int[] numFilesBySizeClass = new int[SizeClass.values().length];
+    private final long[] numBytesBySizeClass = new long[SizeClass.values().length];
+    private int numStored;
+    private int numDeflated;
+    private int numOtherMethod;
+    private int numDirRuns;
+    private int longestDirRun;
+    private long totalBytes;
+    private long largestEntrySize;
+
+    /**
+     * Profile the entries of a zipfile, classifying files of at most tinyMaxSize bytes as tiny, and of at least
+     * hugeMinSize bytes as huge.
+     */
+    ArchiveProfile(final ConcurrentZipReader zipReader, final long tinyMaxSize, final long hugeMinSize)
+            throws IOException {
+        this.tinyMaxSize = tinyMaxSize;
+        this.hugeMinSize = hugeMinSize;
+        numEntries = zipReader.size();
+        var dirRun = 0;
+        for (int i = 0; i < numEntries; i++) {
+            // Count the runs of consecutive entries with the same parent directory
+            if (i == 0 || !zipReader.hasSameParentDir(i - 1, i)) {
+                numDirRuns++;
+                dirRun = 0;
+            }
+            longestDirRun = Math.max(longestDirRun, ++dirRun);
+            if (zipReader.isDirectory(i)) {
+                numDirEntries++;
+                continue;
+            }
+            final var size = zipReader.getSize(i);
+            final var sizeClass = size <= tinyMaxSize ? SizeClass.TINY
+                    : size < hugeMinSize ? SizeClass.MEDIUM : SizeClass.HUGE;
+            numFilesBySizeClass[sizeClass.ordinal()]++;
+            numBytesBySizeClass[sizeClass.ordinal()] += size;
+            totalBytes += size;
+            largestEntrySize = Math.max(largestEntrySize, size);
+            final var method = zipReader.getMethod(i);
+            if (method == ZipEntry.STORED) {
+                numStored++;
+            } else if (method == ZipEntry.DEFLATED) {
+                numDeflated++;
+            } else {
+                numOtherMethod++;
+            }
+        }
+    }
+
+    /** The number of file (i.e. non-directory) entries. */
+    private int getNumFiles() {
+        return numEntries - numDirEntries;
+    }
+
+    /**
+     * Choose the extraction strategy for the zipfile:
+     * 
+     * <ul>
+     * <li>{@link Strategy#SERIAL} for a handful of small entries, where starting threads would cost more than
+     * extracting the entries;
+     * <li>{@link Strategy#CHUNKED} if most of the data is in huge entries, which are then split between threads;
+     * <li>{@link Strategy#BATCHED} if most of the entries are tiny files, which are then claimed in batches;
+     * <li>{@link Strategy#PARALLEL} otherwise.
+     * </ul>
+     */
+    Strategy chooseStrategy() {
+        if (numEntries <= SERIAL_MAX_ENTRIES && totalBytes <= SERIAL_MAX_BYTES) {
+            return Strategy.SERIAL;
+        } else if (numBytesBySizeClass[SizeClass.HUGE.ordinal()] * 2 >= totalBytes && totalBytes > 0) {
+            return Strategy.CHUNKED;
+        } else if (getNumFiles() >= BATCHED_MIN_ENTRIES
+                && numFilesBySizeClass[SizeClass.TINY.ordinal()] * 2 >= getNumFiles()) {
+            return Strategy.BATCHED;
+        } else {
+            return Strategy.PARALLEL;
+        }
+    }
+
+    /** A summary of the profile: the entry count, size histogram, method mix and directory fan-out. */
+    @Override
+    public String toString() {
+        final var buf = new StringBuilder();
+        buf.append(String.format("Profile: %d entries (%d files, %d directories), %d bytes uncompressed, "
+                + "largest entry %d bytes%n", numEntries, getNumFiles(), numDirEntries, totalBytes,
+                largestEntrySize));
+        for (final var sizeClass : SizeClass.values()) {
+            final var i = sizeClass.ordinal();
+            final var range = sizeClass == SizeClass.TINY ? "up to " + tinyMaxSize
+                    : sizeClass == SizeClass.MEDIUM ? "less than " + hugeMinSize : hugeMinSize + " or more";
+            buf.append(String.format("  %6s files: %9d, %14d bytes (%s bytes each)%n", sizeClass.label,
+                    numFilesBySizeClass[i], numBytesBySizeClass[i], range));
+        }
+        buf.append(String.format("  methods: %d stored, %d deflated, %d other%n", numStored, numDeflated,
+                numOtherMethod));
+        buf.append(String.format("  directory fan-out: %d runs of entries in the same directory, "
+                + "%.1f entries per run on average, %d at most%n", numDirRuns,
+                numEntries / (double) Math.max(1, numDirRuns), longestDirRun));
+        return buf.toString();
+    }
+}
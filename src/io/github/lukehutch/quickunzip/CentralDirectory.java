@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipException;
+
+/**
+ * The central directory of a zipfile, parsed directly from a memory mapping of the file (including Zip64 records),
+ * without allocating a ZipEntry or String for each entry. Entries are stored in parallel arrays, indexed by their
+ * order in the central directory. Entry names are only decoded on demand.
+ */
+class CentralDirectory {
+    private final MappedFile mappedFile;
+
+    /** The number of entries. */
+    private final int numEntries;
+
+    /** The file position of the central directory header of each entry. */
+    private final long[] cenHeaderPos;
+
+    /** The file position of the local header of each entry. */
+    private final long[] locHeaderPos;
+
+    /** The compressed size of each entry. */
+    private final long[] compressedSize;
+
+    /** The uncompressed size of each entry. */
+    private final long[] uncompressedSize;
+
+    /** The CRC32 of each entry. */
+    private final int[] crc;
+
+    /** The compression method of each entry. */
+    private final short[] method;
+
+    /** The general purpose bit flags of each entry. */
+    private final short[] flags;
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_LEN = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_LEN = 20;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_LEN = 46;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    /** Compression method: stored (uncompressed). */
+    static final int STORED = 0;
+
+    /** Compression method: deflated. */
+    static final int DEFLATED = 8;
+
+    /** Parse the central directory of the zipfile in the given mapped file. */
+    CentralDirectory(final MappedFile mappedFile) throws IOException {
+        this.mappedFile = mappedFile;
+        final var fileLen = mappedFile.length();
+
+        // Find the end of central directory record, which is followed by a comment of up to 64kB
+        long eocdPos = -1;
+        for (long pos = fileLen - EOCD_LEN, minPos = Math.max(0, pos - 0xffff); pos >= minPos; pos--) {
+            if (mappedFile.getUnsignedInt(pos) == EOCD_SIG
+                    && pos + EOCD_LEN + mappedFile.getUnsignedShort(pos + 20) == fileLen) {
+                eocdPos = pos;
+                break;
+            }
+        }
+        if (eocdPos < 0) {
+            throw new ZipException("Zip end of central directory record not found");
+        }
+        long numEnt = mappedFile.getUnsignedShort(eocdPos + 10);
+        long cenSize = mappedFile.getUnsignedInt(eocdPos + 12);
+        long cenOff = mappedFile.getUnsignedInt(eocdPos + 16);
+        // The position where the central directory actually ends (the EOCD, or the Zip64 EOCD if present)
+        long cenEnd = eocdPos;
+
+        // Check for a Zip64 end of central directory locator immediately before the EOCD
+        final var locatorPos = eocdPos - ZIP64_EOCD_LOCATOR_LEN;
+        if (locatorPos >= 0 && mappedFile.getUnsignedInt(locatorPos) == ZIP64_EOCD_LOCATOR_SIG) {
+            final var zip64EocdPos = mappedFile.getLong(locatorPos + 8);
+            if (zip64EocdPos >= 0 && zip64EocdPos + 56 <= locatorPos
+                    && mappedFile.getUnsignedInt(zip64EocdPos) == ZIP64_EOCD_SIG) {
+                numEnt = mappedFile.getLong(zip64EocdPos + 32);
+                cenSize = mappedFile.getLong(zip64EocdPos + 40);
+                cenOff = mappedFile.getLong(zip64EocdPos + 48);
+                cenEnd = zip64EocdPos;
+            }
+        }
+
+        // Any data prepended to the zipfile (e.g. a self-extracting stub) shifts all offsets by the same amount
+        final var cenPos = cenEnd - cenSize;
+        final var baseOffset = cenPos - cenOff;
+        if (cenSize < 0 || cenPos < 0 || baseOffset < 0) {
+            throw new ZipException("Invalid zip central directory position");
+        }
+        if (numEnt < 0 || numEnt > Integer.MAX_VALUE - 8 || numEnt > cenSize / CEN_LEN) {
+            throw new ZipException("Invalid zip central directory entry count: " + numEnt);
+        }
+
+        numEntries = (int) numEnt;
+        cenHeaderPos = new long[numEntries];
+        locHeaderPos = new long[numEntries];
+        compressedSize = new long[numEntries];
+        uncompressedSize = new long[numEntries];
+        crc = new int[numEntries];
+        method = new short[numEntries];
+        flags = new short[numEntries];
+
+        var pos = cenPos;
+        for (int i = 0; i < numEntries; i++) {
+            if (pos + CEN_LEN > cenEnd || mappedFile.getUnsignedInt(pos) != CEN_SIG) {
+                throw new ZipException("Invalid zip central directory header at offset " + pos);
+            }
+            final var nameLen = mappedFile.getUnsignedShort(pos + 28);
+            final var extraLen = mappedFile.getUnsignedShort(pos + 30);
+            final var commentLen = mappedFile.getUnsignedShort(pos + 32);
+            final var headerLen = CEN_LEN + nameLen + extraLen + commentLen;
+            if (pos + headerLen > cenEnd) {
+                throw new ZipException("Zip central directory header overflows directory at offset " + pos);
+            }
+            cenHeaderPos[i] = pos;
+            flags[i] = (short) mappedFile.getUnsignedShort(pos + 8);
+            method[i] = (short) mappedFile.getUnsignedShort(pos + 10);
+            crc[i] = (int) mappedFile.getUnsignedInt(pos + 16);
+            var csize = mappedFile.getUnsignedInt(pos + 20);
+            var usize = mappedFile.getUnsignedInt(pos + 24);
+            var locOff = mappedFile.getUnsignedInt(pos + 42);
+
+            // If any field overflowed 32 bits, read it from the Zip64 extended information extra field
+            if (csize == ZIP64_MAGIC || usize == ZIP64_MAGIC || locOff == ZIP64_MAGIC) {
+                final var extraEnd = pos + CEN_LEN + nameLen + extraLen;
+                for (var extraPos = pos + CEN_LEN + nameLen; extraPos + 4 <= extraEnd;) {
+                    final var tag = mappedFile.getUnsignedShort(extraPos);
+                    final var size = mappedFile.getUnsignedShort(extraPos + 2);
+                    var fieldPos = extraPos + 4;
+                    final var fieldEnd = Math.min(fieldPos + size, extraEnd);
+                    if (tag == ZIP64_EXTRA_ID) {
+                        // Zip64 fields appear in this fixed order, but only if the 32-bit field overflowed
+                        if (usize == ZIP64_MAGIC && fieldPos + 8 <= fieldEnd) {
+                            usize = mappedFile.getLong(fieldPos);
+                            fieldPos += 8;
+                        }
+                        if (csize == ZIP64_MAGIC && fieldPos + 8 <= fieldEnd) {
+                            csize = mappedFile.getLong(fieldPos);
+                            fieldPos += 8;
+                        }
+                        if (locOff == ZIP64_MAGIC && fieldPos + 8 <= fieldEnd) {
+                            locOff = mappedFile.getLong(fieldPos);
+                            fieldPos += 8;
+                        }
+                        break;
+                    }
+                    extraPos += 4 + size;
+                }
+            }
+            if (csize < 0 || usize < 0 || locOff < 0 || baseOffset + locOff >= cenPos) {
+                throw new ZipException("Invalid zip entry sizes or offset in central directory at offset " + pos);
+            }
+            compressedSize[i] = csize;
+            uncompressedSize[i] = usize;
+            locHeaderPos[i] = baseOffset + locOff;
+            pos += headerLen;
+        }
+    }
+
+    /** The mapped zipfile. */
+    MappedFile getMappedFile() {
+        return mappedFile;
+    }
+
+    /** The number of entries in the central directory. */
+    int size() {
+        return numEntries;
+    }
+
+    /** The length of the name of the entry, in bytes. */
+    int getNameLength(final int entryIdx) throws IOException {
+        return mappedFile.getUnsignedShort(cenHeaderPos[entryIdx] + 28);
+    }
+
+    /** The name of the entry, decoded as UTF-8 (the same default as {@link java.util.zip.ZipFile}). */
+    String getName(final int entryIdx) throws IOException {
+        final var nameLen = getNameLength(entryIdx);
+        final var nameBytes = new byte[nameLen];
+        mappedFile.getBytes(cenHeaderPos[entryIdx] + CEN_LEN, nameBytes, 0, nameLen);
+        return new String(nameBytes, StandardCharsets.UTF_8);
+    }
+
+    /** Returns true if the entry is a directory entry, i.e. if its name ends in "/". */
+    boolean isDirectory(final int entryIdx) throws IOException {
+        final var nameLen = getNameLength(entryIdx);
+        return nameLen > 0 && mappedFile.getUnsignedByte(cenHeaderPos[entryIdx] + CEN_LEN + nameLen - 1) == '/';
+    }
+
+    /**
+     * The length of the parent directory part of the entry name, i.e. up to and including the last "/" before the
+     * final character (so the parent of "a/b/" is "a/"), or 0 if the entry is at the top level.
+     */
+    private int getParentDirLength(final int entryIdx) throws IOException {
+        final var namePos = cenHeaderPos[entryIdx] + CEN_LEN;
+        for (int i = getNameLength(entryIdx) - 2; i >= 0; i--) {
+            if (mappedFile.getUnsignedByte(namePos + i) == '/') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns true if the names of two entries have the same parent directory. */
+    boolean hasSameParentDir(final int entryIdx0, final int entryIdx1) throws IOException {
+        final var len = getParentDirLength(entryIdx0);
+        if (len != getParentDirLength(entryIdx1)) {
+            return false;
+        }
+        final var namePos0 = cenHeaderPos[entryIdx0] + CEN_LEN;
+        final var namePos1 = cenHeaderPos[entryIdx1] + CEN_LEN;
+        // Sibling directories usually differ near the end of their paths
+        for (int i = len - 1; i >= 0; i--) {
+            if (mappedFile.getUnsignedByte(namePos0 + i) != mappedFile.getUnsignedByte(namePos1 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The file position of the local header of the entry. */
+    long getLocalHeaderPos(final int entryIdx) {
+        return locHeaderPos[entryIdx];
+    }
+
+    /** The compressed size of the entry. */
+    long getCompressedSize(final int entryIdx) {
+        return compressedSize[entryIdx];
+    }
+
+    /** The uncompressed size of the entry. */
+    long getUncompressedSize(final int entryIdx) {
+        return uncompressedSize[entryIdx];
+    }
+
+    /** The CRC32 of the uncompressed data of the entry. */
+    int getCrc(final int entryIdx) {
+        return crc[entryIdx];
+    }
+
+    /** The compression method of the entry ({@link #STORED} or {@link #DEFLATED}, or some unsupported method). */
+    int getMethod(final int entryIdx) {
+        return method[entryIdx];
+    }
+
+    /** The general purpose bit flags of the entry. */
+    int getFlags(final int entryIdx) {
+        return flags[entryIdx] & 0xffff;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.lukehutch.quickunzip.Utils.WorkStealingScheduler;
+
+/**
+ * Adjusts the number of active workers of a {@link WorkStealingScheduler} while it runs, using additive increase,
+ * multiplicative decrease (AIMD), so that the concurrency suits the storage and CPUs of the host without tuning.
+ *
+ * <p>
+ * Throughput is measured over short windows as the number of bytes and entries extracted per second, combined
+ * into a single rate by counting each entry as {@link #ENTRY_EQUIVALENT_BYTES} bytes (the fixed cost of creating
+ * a file is about the same as the cost of writing that many bytes). Bytes are counted as each buffer is copied or
+ * decompressed, so a window spent inside one large entry still shows progress.
+ *
+ * <p>
+ * Each concurrency level is judged only against rates measured at that level: after every change, one window is
+ * skipped while workers park or unpark, then the rate is smoothed over the windows spent at the level. While the
+ * rate holds up, one worker is added, to probe for more throughput. If the rate drops significantly below the
+ * smoothed rate of the current level, or if adding a worker made the rate drop significantly below that of the
+ * previous level, the storage or CPUs are assumed to be oversubscribed, and the number of workers is cut by a
+ * quarter. (The rate after a cut is not compared with the rate before it, since fewer workers are expected to be
+ * slower when the work is CPU-bound, and such a comparison would cut the workers again and again.)
+ */
+class ConcurrencyController {
+    /** The length of a measurement window, in ns. */
+    private static final long WINDOW_NANOS = 200_000_000L;
+
+    /** The number of bytes that an entry counts as when measuring throughput. */
+    private static final long ENTRY_EQUIVALENT_BYTES = 32 * 1024;
+
+    /** The rate must drop below this fraction of the reference rate to decrease concurrency. */
+    private static final double DROP_THRESHOLD = 0.9;
+
+    /** The number of windows that are not judged after the concurrency changes, while workers settle. */
+    private static final int HOLD_WINDOWS = 1;
+
+    /** The weight of each new window in the smoothed rate of the current concurrency level. */
+    private static final double SMOOTHING = 0.5;
+
+    /** The factor the concurrency is multiplied by when the rate drops. */
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private final WorkStealingScheduler scheduler;
+    private final ConcurrentZipReader zipReader;
+    private final SizeClassStats stats;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    private long startNanos;
+    private long endNanos;
+    private long concurrencyNanos;
+    private int numWindows;
+    private int numIncreases;
+    private int numDecreases;
+    private int lowestConcurrency;
+    private int highestConcurrency;
+
+    /**
+     * Control the concurrency of the scheduler, between minConcurrency and maxConcurrency workers, starting at
+     * initialConcurrency, measuring throughput from the bytes extracted by zipReader, and the entries counted by
+     * stats.
+     */
+    ConcurrencyController(final WorkStealingScheduler scheduler, final ConcurrentZipReader zipReader,
+            final SizeClassStats stats, final int initialConcurrency, final int minConcurrency,
+            final int maxConcurrency) {
+        this.scheduler = scheduler;
+        this.zipReader = zipReader;
+        this.stats = stats;
+        this.minConcurrency = Math.max(1, minConcurrency);
+        this.maxConcurrency = Math.max(this.minConcurrency, maxConcurrency);
+        final var initial = Math.max(this.minConcurrency, Math.min(this.maxConcurrency, initialConcurrency));
+        scheduler.setConcurrencyLimit(initial);
+        lowestConcurrency = highestConcurrency = initial;
+    }
+
+    /** Start adjusting the concurrency, on a daemon thread. */
+    void start() {
+        startNanos = System.nanoTime();
+        thread = new Thread(this::run, "QuickUnzip-controller");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop adjusting the concurrency, and wait for the controller thread to exit. */
+    void stop() throws InterruptedException {
+        stopped = true;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join();
+        }
+        endNanos = System.nanoTime();
+    }
+
+    /** The throughput measure: bytes extracted so far, plus a byte equivalent for each finished entry. */
+    private long getProgress() {
+        return zipReader.getBytesExtracted() + stats.getTotalEntries() * ENTRY_EQUIVALENT_BYTES;
+    }
+
+    /** The control loop. */
+    private void run() {
+        var concurrency = scheduler.getConcurrencyLimit();
+        // The smoothed rate at the current concurrency, or -1 if not yet measured
+        var levelRate = -1.0;
+        // The smoothed rate at the previous concurrency, if the last change was an increase, otherwise -1
+        var previousLevelRate = -1.0;
+        var holdWindows = 0;
+        var lastProgress = getProgress();
+        var lastNanos = System.nanoTime();
+        while (!stopped && !scheduler.isFullyClaimed()) {
+            LockSupport.parkNanos(WINDOW_NANOS);
+            final var progress = getProgress();
+            final var nanos = System.nanoTime();
+            final var rate = (progress - lastProgress) / (double) Math.max(1, nanos - lastNanos);
+            concurrencyNanos += concurrency * (nanos - lastNanos);
+            numWindows++;
+            lastProgress = progress;
+            lastNanos = nanos;
+            if (holdWindows > 0) {
+                // Let the workers settle after a change before judging the new concurrency
+                holdWindows--;
+                continue;
+            }
+            final boolean dropped;
+            if (levelRate < 0) {
+                // First window at this concurrency: judge the last increase against the previous level
+                dropped = previousLevelRate >= 0 && rate < previousLevelRate * DROP_THRESHOLD;
+                levelRate = rate;
+            } else {
+                dropped = rate < levelRate * DROP_THRESHOLD;
+                levelRate += SMOOTHING * (rate - levelRate);
+            }
+            var newConcurrency = concurrency;
+            if (dropped) {
+                // Multiplicative decrease
+                newConcurrency = Math.max(minConcurrency, (int) (concurrency * DECREASE_FACTOR));
+                if (newConcurrency < concurrency) {
+                    numDecreases++;
+                }
+            } else if (concurrency < maxConcurrency) {
+                // Additive increase
+                newConcurrency = concurrency + 1;
+                numIncreases++;
+            }
+            if (newConcurrency != concurrency) {
+                scheduler.setConcurrencyLimit(newConcurrency);
+                previousLevelRate = newConcurrency > concurrency ? levelRate : -1.0;
+                levelRate = -1.0;
+                holdWindows = HOLD_WINDOWS;
+                concurrency = newConcurrency;
+                lowestConcurrency = Math.min(lowestConcurrency, concurrency);
+                highestConcurrency = Math.max(highestConcurrency, concurrency);
+            }
+        }
+    }
+
+    /**
+     * A summary of the concurrency chosen by the controller, and the overall throughput, after the controller has
+     * been stopped.
+     */
+    @Override
+    public String toString() {
+        final var elapsedNanos = Math.max(1, endNanos - startNanos);
+        final var averageConcurrency = numWindows == 0 ? scheduler.getConcurrencyLimit()
+                : concurrencyNanos / (double) Math.max(1, elapsedNanos);
+        return String.format(
+                "Adaptive concurrency: %d workers at the end (%.1f on average, between %d and %d; "
+                        + "%d increases and %d decreases over %d windows); %.1f MB/s, %.0f entries/s",
+                scheduler.getConcurrencyLimit(), averageConcurrency, lowestConcurrency, highestConcurrency,
+                numIncreases, numDecreases, numWindows, stats.getTotalBytes() / (elapsedNanos / 1e9) / 1e6,
+                stats.getTotalEntries() / (elapsedNanos / 1e9));
+    }
+}
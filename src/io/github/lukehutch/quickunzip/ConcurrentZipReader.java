@@ -0,0 +1,939 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A zipfile reader that can be shared between any number of threads. Unlike {@link java.util.zip.ZipFile}, whose
+ * methods are synchronized, all threads share a single {@link FileChannel}, and entry data is read using
+ * positional reads ({@link FileChannel#read(ByteBuffer, long)}), so reading entries concurrently requires neither
+ * one instance per thread nor any locking.
+ *
+ * <p>
+ * Entries are identified by their index in the central directory, from 0 to {@code size() - 1}.
+ */
+public class ConcurrentZipReader implements AutoCloseable {
+    private final FileChannel fileChannel;
+    private final MappedFile mappedFile;
+    private final CentralDirectory centralDirectory;
+
+    /** The file position of the data of each entry, or 0 if not yet read from the local header. */
+    private final long[] dataPos;
+
+    /** The number of bytes of entry data copied or decompressed so far, for measuring throughput. */
+    private final LongAdder bytesExtracted = new LongAdder();
+
+    /** Map from entry name to entry index, built the first time an entry is looked up by name. */
+    private volatile Map<String, Integer> entryNameToIdx;
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_LEN = 30;
+
+    /** The size of the buffer used to read compressed data. */
+    private static final int INPUT_BUF_SIZE = 64 * 1024;
+
+    /** The size of the direct buffer used by {@link EntryReader#inflateTo(int, WritableByteChannel)}. */
+    private static final int OUTPUT_BUF_SIZE = 256 * 1024;
+
+    /** The maximum size of an entry that can be read with {@link EntryReader#readFully(int)}. */
+    public static final int MAX_READ_FULLY_SIZE = OUTPUT_BUF_SIZE;
+
+    /** The maximum number of bytes copied by one call to {@link FileChannel#transferTo}. */
+    private static final long MAX_TRANSFER_SIZE = 16L * 1024 * 1024;
+
+    /** The number of bytes of an output file that are mapped at a time by {@link EntryReader#inflateToMapped}. */
+    private static final int MAPPED_OUTPUT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+    /** Open a zipfile, and read its central directory. */
+    public ConcurrentZipReader(final Path zipfilePath) throws IOException {
+        fileChannel = FileChannel.open(zipfilePath, StandardOpenOption.READ);
+        try {
+            mappedFile = new MappedFile(fileChannel);
+            centralDirectory = new CentralDirectory(mappedFile);
+        } catch (final IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+        dataPos = new long[centralDirectory.size()];
+    }
+
+    /** The number of entries in the zipfile. */
+    public int size() {
+        return centralDirectory.size();
+    }
+
+    /** The name of the entry. */
+    public String getName(final int entryIdx) throws IOException {
+        return centralDirectory.getName(entryIdx);
+    }
+
+    /** Returns true if the entry is a directory. */
+    public boolean isDirectory(final int entryIdx) throws IOException {
+        return centralDirectory.isDirectory(entryIdx);
+    }
+
+    /** Returns true if the names of two entries have the same parent directory. */
+    boolean hasSameParentDir(final int entryIdx0, final int entryIdx1) throws IOException {
+        return centralDirectory.hasSameParentDir(entryIdx0, entryIdx1);
+    }
+
+    /** The compression method of the entry ({@link java.util.zip.ZipEntry#STORED} or DEFLATED). */
+    public int getMethod(final int entryIdx) {
+        return centralDirectory.getMethod(entryIdx);
+    }
+
+    /** The compressed size of the entry. */
+    public long getCompressedSize(final int entryIdx) {
+        return centralDirectory.getCompressedSize(entryIdx);
+    }
+
+    /** The uncompressed size of the entry. */
+    public long getSize(final int entryIdx) {
+        return centralDirectory.getUncompressedSize(entryIdx);
+    }
+
+    /** The CRC32 of the uncompressed data of the entry. */
+    public long getCrc(final int entryIdx) {
+        return centralDirectory.getCrc(entryIdx) & 0xffffffffL;
+    }
+
+    /**
+     * The number of bytes of entry data that have been copied or decompressed so far, by all threads. This is
+     * counted as each buffer is produced, rather than when an entry is finished, so it can be used to measure the
+     * throughput of extraction over intervals shorter than the time taken to extract a large entry. (Ranges read
+     * with {@link #readRange} are not counted.)
+     */
+    long getBytesExtracted() {
+        return bytesExtracted.sum();
+    }
+
+    /**
+     * Find the index of the entry with the given name.
+     *
+     * @return the entry index, or -1 if there is no entry with the given name. If there are multiple entries with
+     *         the same name, the last one is returned.
+     */
+    public int getEntryIdx(final String name) throws IOException {
+        var map = entryNameToIdx;
+        if (map == null) {
+            synchronized (this) {
+                map = entryNameToIdx;
+                if (map == null) {
+                    map = new HashMap<>();
+                    for (int i = 0; i < centralDirectory.size(); i++) {
+                        map.put(centralDirectory.getName(i), i);
+                    }
+                    entryNameToIdx = map;
+                }
+            }
+        }
+        final var entryIdx = map.get(name);
+        return entryIdx == null ? -1 : entryIdx;
+    }
+
+    /** The file position of the start of the (possibly compressed) data of the entry. */
+    public long getDataPos(final int entryIdx) throws IOException {
+        var pos = dataPos[entryIdx];
+        if (pos == 0) {
+            // Read the local header. (Benign race -- all threads compute the same value.)
+            final var locPos = centralDirectory.getLocalHeaderPos(entryIdx);
+            if (locPos + LOC_LEN > mappedFile.length() || mappedFile.getUnsignedInt(locPos) != LOC_SIG) {
+                throw new ZipException("Invalid zip local header for entry " + getName(entryIdx));
+            }
+            pos = locPos + LOC_LEN + mappedFile.getUnsignedShort(locPos + 26)
+                    + mappedFile.getUnsignedShort(locPos + 28);
+            if (pos + getCompressedSize(entryIdx) > mappedFile.length()) {
+                throw new ZipException("Zip entry data overflows zipfile for entry " + getName(entryIdx));
+            }
+            dataPos[entryIdx] = pos;
+        }
+        return pos;
+    }
+
+    /**
+     * Check that the entry can be read (it is stored or deflated, and not encrypted), so that no output file is
+     * created for an entry that cannot be extracted.
+     *
+     * @throws ZipException
+     *             if the entry cannot be read.
+     */
+    void checkReadable(final int entryIdx) throws IOException {
+        isDeflated(entryIdx);
+    }
+
+    /** Check that the entry can be read, and return true if it is deflated, or false if it is stored. */
+    private boolean isDeflated(final int entryIdx) throws IOException {
+        if ((centralDirectory.getFlags(entryIdx) & 1) != 0) {
+            throw new ZipException("Encrypted zip entries are not supported: " + getName(entryIdx));
+        }
+        final var method = getMethod(entryIdx);
+        if (method != CentralDirectory.STORED && method != CentralDirectory.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + method + ": " + getName(entryIdx));
+        }
+        return method == CentralDirectory.DEFLATED;
+    }
+
+    /**
+     * Open the entry as an InputStream. The stream is not thread-safe, but any number of streams may be open at
+     * once, in any number of threads. Each stream allocates its own Inflater and buffer -- to reuse these across
+     * entries, read entries using an {@link EntryReader} instead.
+     */
+    public InputStream getInputStream(final int entryIdx) throws IOException {
+        final var deflated = isDeflated(entryIdx);
+        final var compressedSize = getCompressedSize(entryIdx);
+        return new EntryInputStream(deflated ? new Inflater(/* nowrap = */ true) : null,
+                deflated ? new byte[(int) Math.max(1, Math.min(INPUT_BUF_SIZE, compressedSize))] : null,
+                /* ownsInflater = */ true).open(getDataPos(entryIdx), compressedSize, deflated);
+    }
+
+    /**
+     * Copy the data of a stored (uncompressed) entry to the target channel, using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so that when the target is a file, the
+     * kernel can copy the data directly from the zipfile (e.g. with copy_file_range or sendfile on Linux), without
+     * it passing through the Java heap.
+     *
+     * @return the number of bytes transferred.
+     * @throws ZipException
+     *             if the entry is not stored.
+     */
+    public long transferTo(final int entryIdx, final WritableByteChannel target) throws IOException {
+        return transferTo(entryIdx, 0, getCompressedSize(entryIdx), target);
+    }
+
+    /**
+     * Copy the range of bytes {@code [offset, offset + len)} of the data of a stored (uncompressed) entry to the
+     * target channel, as with {@link #transferTo(int, WritableByteChannel)}. Different ranges of the same entry
+     * may be copied concurrently, e.g. to different positions of the same output file.
+     *
+     * @return the number of bytes transferred.
+     * @throws ZipException
+     *             if the entry is not stored.
+     */
+    public long transferTo(final int entryIdx, final long offset, final long len, final WritableByteChannel target)
+            throws IOException {
+        if (isDeflated(entryIdx)) {
+            throw new ZipException("Zip entry is not stored: " + getName(entryIdx));
+        }
+        if (offset < 0 || len < 0 || offset + len > getCompressedSize(entryIdx)) {
+            throw new IndexOutOfBoundsException("Range out of bounds: " + offset + " + " + len);
+        }
+        final var rangeStart = getDataPos(entryIdx) + offset;
+        for (long transferred = 0; transferred < len;) {
+            // Transfer at most MAX_TRANSFER_SIZE bytes at a time, so that progress is counted as the copy proceeds
+            final var bytesTransferred = fileChannel.transferTo(rangeStart + transferred,
+                    Math.min(MAX_TRANSFER_SIZE, len - transferred), target);
+            if (bytesTransferred <= 0) {
+                throw new EOFException("Unexpected end of zipfile");
+            }
+            transferred += bytesTransferred;
+            bytesExtracted.add(bytesTransferred);
+        }
+        return len;
+    }
+
+    /**
+     * Decompress a deflated entry into the target file, starting at position 0 of the file, using the calling
+     * thread plus up to {@code parallelism - 1} tasks of the executor, by splitting the compressed data into chunks
+     * that are decoded in parallel (see {@link ParallelInflater}). The size and CRC32 of the decompressed data are
+     * checked. Entries that are too small to split, and entries that cannot be split (e.g. because of an extreme
+     * compression ratio), are decompressed by the calling thread alone. Stored entries are copied.
+     *
+     * <p>
+     * This may be called from a task of the executor itself, since the calling thread does any work not yet
+     * claimed by other threads.
+     *
+     * @return the number of bytes written.
+     */
+    public long inflateParallel(final int entryIdx, final FileChannel target, final ExecutorService executor,
+            final int parallelism) throws IOException {
+        return inflateParallel(entryIdx, target, executor, parallelism, null);
+    }
+
+    /**
+     * As with {@link #inflateParallel(int, FileChannel, ExecutorService, int)}, but charging the memory used by
+     * chunks decoded in parallel to the memory budget, if not null. If the budget cannot hold even one chunk, the
+     * entry is decompressed by the calling thread alone.
+     */
+    long inflateParallel(final int entryIdx, final FileChannel target, final ExecutorService executor,
+            final int parallelism, final MemoryBudget memoryBudget) throws IOException {
+        if (!isDeflated(entryIdx)) {
+            return transferTo(entryIdx, target);
+        }
+        final var parallelInflater = new ParallelInflater(mappedFile, getDataPos(entryIdx),
+                getCompressedSize(entryIdx), getSize(entryIdx), executor, parallelism, memoryBudget,
+                bytesExtracted);
+        if (parallelInflater.getNumChunks() > 1 && parallelInflater.fitsMemoryBudget()) {
+            try {
+                final var bytesWritten = parallelInflater.inflateTo(target, getSize(entryIdx),
+                        centralDirectory.getCrc(entryIdx));
+                if (bytesWritten >= 0) {
+                    target.position(bytesWritten);
+                    return bytesWritten;
+                }
+            } catch (final ZipException e) {
+                throw new ZipException(e.getMessage() + ": " + getName(entryIdx));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decompressing " + getName(entryIdx));
+            }
+            // Could not decompress in parallel -- start again
+            target.truncate(0);
+            target.position(0);
+        }
+        // Decompress sequentially, checking the size and CRC32 of the data, as ParallelInflater does
+        final var crc32 = new CRC32();
+        final long bytesWritten;
+        try (var entryReader = new EntryReader(/* pureJavaInflater = */ true)) {
+            bytesWritten = entryReader.inflateTo(entryIdx, target, crc32);
+        }
+        if (bytesWritten != getSize(entryIdx) || crc32.getValue() != getCrc(entryIdx)) {
+            throw new ZipException("Invalid zip entry size or CRC: " + getName(entryIdx));
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Build a random-access index for a deflated entry, with checkpoints at least spacing bytes apart in the
+     * uncompressed data, by decompressing the whole entry. (Checkpoints are only possible at the boundaries
+     * between DEFLATE blocks, which are usually no more than a few hundred kB apart.) The CRC32 of the entry is
+     * checked.
+     */
+    public EntryIndex buildIndex(final int entryIdx, final long spacing) throws IOException {
+        return buildIndex(entryIdx, spacing, null);
+    }
+
+    /**
+     * Build a random-access index for a deflated entry, as in {@link #buildIndex(int, long)}, while also writing
+     * the decompressed data of the entry to the target channel, if target is not null.
+     */
+    public EntryIndex buildIndex(final int entryIdx, final long spacing, final WritableByteChannel target)
+            throws IOException {
+        if (!isDeflated(entryIdx)) {
+            throw new ZipException("Only deflated entries can be indexed: " + getName(entryIdx));
+        }
+        if (spacing <= 0) {
+            throw new IllegalArgumentException("Checkpoint spacing must be positive");
+        }
+        final var fastInflater = new FastInflater();
+        final var outputBuf = ByteBuffer.allocateDirect(OUTPUT_BUF_SIZE);
+        final var crc32 = new CRC32();
+        final var checkpointOutputPos = new ArrayList<Long>();
+        final var checkpointBitPos = new ArrayList<Long>();
+        final var windows = new ArrayList<byte[]>();
+        var nextCheckpoint = spacing;
+        try {
+            fastInflater.setInput(mappedFile, getDataPos(entryIdx), getCompressedSize(entryIdx));
+            for (;;) {
+                if (fastInflater.getTotalOut() >= nextCheckpoint) {
+                    // Stop at the next block boundary
+                    fastInflater.resume(0);
+                }
+                outputBuf.clear();
+                final var bytesInflated = fastInflater.inflate(outputBuf);
+                if (bytesInflated > 0) {
+                    bytesExtracted.add(bytesInflated);
+                    outputBuf.flip();
+                    crc32.update(outputBuf);
+                    if (target != null) {
+                        outputBuf.rewind();
+                        while (outputBuf.hasRemaining()) {
+                            target.write(outputBuf);
+                        }
+                    }
+                } else if (fastInflater.isStopped()) {
+                    // All output preceding the block boundary has been returned
+                    checkpointOutputPos.add(fastInflater.getTotalOut());
+                    checkpointBitPos.add(fastInflater.getBitPosition());
+                    windows.add(fastInflater.getWindow());
+                    nextCheckpoint = fastInflater.getTotalOut() + spacing;
+                    fastInflater.resume(Long.MAX_VALUE);
+                } else {
+                    break;
+                }
+            }
+        } catch (final DataFormatException e) {
+            throw new ZipException(e.getMessage() + ": " + getName(entryIdx));
+        }
+        if (fastInflater.getTotalOut() != getSize(entryIdx) || crc32.getValue() != getCrc(entryIdx)) {
+            throw new ZipException("Invalid zip entry size or CRC: " + getName(entryIdx));
+        }
+        final var numCheckpoints = checkpointOutputPos.size();
+        final var outputPos = new long[numCheckpoints];
+        final var bitPos = new long[numCheckpoints];
+        for (int i = 0; i < numCheckpoints; i++) {
+            outputPos[i] = checkpointOutputPos.get(i);
+            bitPos[i] = checkpointBitPos.get(i);
+        }
+        return new EntryIndex(entryIdx, getDataPos(entryIdx), getCompressedSize(entryIdx), getSize(entryIdx),
+                centralDirectory.getCrc(entryIdx), spacing, outputPos, bitPos, windows.toArray(new byte[0][]));
+    }
+
+    /**
+     * Read a range of the uncompressed data of an entry. A deflated entry is decompressed starting from the last
+     * checkpoint of the index at or before the start of the range, or from the start of the entry if index is null
+     * (stored entries are read directly, and need no index). Thread-safe.
+     *
+     * @param index
+     *            an index built for this entry by {@link #buildIndex(int, long)} (or read from a sidecar file), or
+     *            null.
+     * @return the number of bytes read, which is less than len only if the range extends past the end of the entry.
+     * @throws IllegalArgumentException
+     *             if the index was not built for this entry.
+     */
+    public int readRange(final int entryIdx, final EntryIndex index, final long offset, final byte[] buf,
+            final int off, final int len) throws IOException {
+        if (offset < 0 || off < 0 || len < 0 || off + len > buf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        final var deflated = isDeflated(entryIdx);
+        final var dataPos = getDataPos(entryIdx);
+        final var size = getSize(entryIdx);
+        final var n = (int) Math.max(0, Math.min(len, size - offset));
+        if (!deflated) {
+            final var dst = ByteBuffer.wrap(buf, off, n);
+            while (dst.hasRemaining()) {
+                if (fileChannel.read(dst, dataPos + offset + dst.position() - off) < 0) {
+                    throw new EOFException("Unexpected end of zipfile");
+                }
+            }
+            return n;
+        }
+        if (index != null && !index.matches(entryIdx, dataPos, getCompressedSize(entryIdx), size,
+                centralDirectory.getCrc(entryIdx))) {
+            throw new IllegalArgumentException("Index was not built for entry " + getName(entryIdx));
+        }
+        if (n == 0) {
+            return 0;
+        }
+        final var fastInflater = new FastInflater();
+        try {
+            // Resume decompression at the nearest checkpoint, then skip to the start of the range
+            final var checkpointIdx = index == null ? -1 : index.findCheckpoint(offset);
+            var pos = 0L;
+            if (checkpointIdx < 0) {
+                fastInflater.setInput(mappedFile, dataPos, getCompressedSize(entryIdx));
+            } else {
+                fastInflater.setInput(mappedFile, dataPos, getCompressedSize(entryIdx),
+                        index.getBitPos(checkpointIdx));
+                fastInflater.setWindow(index.getWindow(checkpointIdx));
+                pos = index.getOutputPos(checkpointIdx);
+            }
+            final var skipBuf = ByteBuffer.allocate((int) Math.min(INPUT_BUF_SIZE, Math.max(1, offset - pos)));
+            while (pos < offset) {
+                skipBuf.clear();
+                if (offset - pos < skipBuf.capacity()) {
+                    skipBuf.limit((int) (offset - pos));
+                }
+                final var skipped = fastInflater.inflate(skipBuf);
+                if (skipped == 0) {
+                    throw new EOFException("Unexpected end of zip entry data: " + getName(entryIdx));
+                }
+                pos += skipped;
+            }
+            final var dst = ByteBuffer.wrap(buf, off, n);
+            while (dst.hasRemaining()) {
+                if (fastInflater.inflate(dst) == 0) {
+                    throw new EOFException("Unexpected end of zip entry data: " + getName(entryIdx));
+                }
+            }
+            return n;
+        } catch (final DataFormatException e) {
+            throw new ZipException(e.getMessage() + ": " + getName(entryIdx));
+        }
+    }
+
+    /** Create a new {@link EntryReader}. */
+    public EntryReader newEntryReader() {
+        return new EntryReader(false);
+    }
+
+    /**
+     * Create a new {@link EntryReader}.
+     *
+     * @param pureJavaInflater
+     *            If true, {@link EntryReader#inflateTo(int, WritableByteChannel)} decompresses entries using a
+     *            pure-Java DEFLATE decoder rather than {@link Inflater}.
+     */
+    public EntryReader newEntryReader(final boolean pureJavaInflater) {
+        return new EntryReader(pureJavaInflater);
+    }
+
+    /**
+     * A reusable handle for reading entries, which owns an Inflater and buffers that are reused for every entry it
+     * opens. An EntryReader is not thread-safe, so it should be used by only one thread (typically one per worker
+     * thread), but any number of EntryReaders may read from the same ConcurrentZipReader at once.
+     */
+    public class EntryReader implements AutoCloseable {
+        private final Inflater inflater = new Inflater(/* nowrap = */ true);
+        private final EntryInputStream entryInputStream = new EntryInputStream(inflater, new byte[INPUT_BUF_SIZE],
+                /* ownsInflater = */ false);
+
+        /** The pure-Java inflater, or null if {@link #inflater} is used by {@link #inflateTo}. */
+        private final FastInflater fastInflater;
+
+        /** Direct buffer for inflated data, allocated the first time {@link #inflateTo} is called. */
+        private ByteBuffer outputBuf;
+
+        /** Permits that must be held while inflating, or null if inflating is not limited. */
+        private Semaphore inflatePermits;
+
+        /** The file position of the next compressed byte to feed to the inflater. */
+        private long inputPos;
+
+        /** The number of compressed bytes left to feed to the inflater. */
+        private long inputRemaining;
+
+        /** True once the inflater has been given the extra dummy byte it requires at the end of nowrap input. */
+        private boolean addedDummyByte;
+
+        private EntryReader(final boolean pureJavaInflater) {
+            fastInflater = pureJavaInflater ? new FastInflater() : null;
+        }
+
+        /**
+         * Limit the number of threads that inflate at the same time: a permit is acquired for each call to the
+         * inflater (which fills a buffer of output), and released before the output is written. This bounds the
+         * CPU used for decompression when entries are extracted by a large number of (virtual) threads, without
+         * limiting the number of threads that may be blocked in file I/O.
+         *
+         * @param inflatePermits
+         *            the permits shared by all threads, or null to not limit inflating.
+         */
+        public void setInflatePermits(final Semaphore inflatePermits) {
+            this.inflatePermits = inflatePermits;
+            entryInputStream.inflatePermits = inflatePermits;
+        }
+
+        /**
+         * Open the entry as an InputStream. The same InputStream object is returned each time this method is
+         * called, so only one entry can be read at a time using a given EntryReader.
+         */
+        public InputStream getInputStream(final int entryIdx) throws IOException {
+            return entryInputStream.open(getDataPos(entryIdx), getCompressedSize(entryIdx), isDeflated(entryIdx));
+        }
+
+        /**
+         * Decompress an entry and write its contents to the target channel. The Inflater reads compressed data
+         * directly from slices of the memory-mapped zipfile, and inflates into a direct buffer that is reused for
+         * every entry, so the data is not copied through any heap arrays, and no stream objects are created.
+         * Stored entries are copied with {@link ConcurrentZipReader#transferTo(int, WritableByteChannel)}.
+         *
+         * @return the number of bytes written.
+         */
+        public long inflateTo(final int entryIdx, final WritableByteChannel target) throws IOException {
+            if (!isDeflated(entryIdx)) {
+                return transferTo(entryIdx, target);
+            }
+            return inflateTo(entryIdx, target, null);
+        }
+
+        /**
+         * Decompress a deflated entry and write its contents to the target channel, as with
+         * {@link #inflateTo(int, WritableByteChannel)}, updating crc32 with the data, if crc32 is not null.
+         */
+        long inflateTo(final int entryIdx, final WritableByteChannel target, final CRC32 crc32) throws IOException {
+            startInflating(entryIdx);
+            long bytesWritten = 0;
+            while (!isInflatingFinished()) {
+                outputBuf.clear();
+                final var bytesInflated = inflateInto(entryIdx, outputBuf);
+                outputBuf.flip();
+                if (crc32 != null) {
+                    outputBuf.mark();
+                    crc32.update(outputBuf);
+                    outputBuf.reset();
+                }
+                while (outputBuf.hasRemaining()) {
+                    target.write(outputBuf);
+                }
+                bytesWritten += bytesInflated;
+            }
+            return bytesWritten;
+        }
+
+        /**
+         * Decompress an entry straight into a memory mapping of the target file, as with
+         * {@link #inflateTo(int, WritableByteChannel)}, but without copying the inflated data through a buffer:
+         * the file is extended to the uncompressed size of the entry, and mapped {@link #MAPPED_OUTPUT_WINDOW_SIZE}
+         * bytes at a time, and the Inflater writes into the mapped pages of the file. Each window is unmapped as
+         * soon as it is full, so at most one window per thread is mapped at a time, and the dirty pages are left to
+         * the page cache to write back, as with a write. If the entry turns out to be shorter than its size, the
+         * file is truncated to the data inflated, once the last window has been unmapped. Stored entries are copied
+         * with {@link ConcurrentZipReader#transferTo(int, WritableByteChannel)}, and if this JVM cannot unmap
+         * buffers, deflated entries are written with {@link #inflateTo(int, WritableByteChannel)} instead.
+         *
+         * @param target
+         *            a new, empty file, open for reading and writing.
+         * @return the number of bytes written.
+         * @throws ZipException
+         *             if the entry is larger than its uncompressed size, or its data is invalid.
+         */
+        public long inflateToMapped(final int entryIdx, final FileChannel target) throws IOException {
+            if (!isDeflated(entryIdx) || !Utils.canUnmap()) {
+                return inflateTo(entryIdx, target);
+            }
+            final var size = getSize(entryIdx);
+            if (size > 0) {
+                // Extend the file to its full size with a write of its last byte, since whether mapping beyond the
+                // end of a file extends it is unspecified
+                target.write(ByteBuffer.allocate(1), size - 1);
+            }
+            startInflating(entryIdx);
+            long bytesWritten = 0;
+            MappedByteBuffer window = null;
+            try {
+                while (!isInflatingFinished()) {
+                    if (bytesWritten >= size) {
+                        // The inflater may still have to consume the end of the stream, but must not produce
+                        // more data
+                        if (inflateInto(entryIdx, ByteBuffer.allocate(1)) > 0) {
+                            throw new ZipException("Zip entry is larger than its size: " + getName(entryIdx));
+                        }
+                    } else {
+                        if (window != null && !window.hasRemaining()) {
+                            final var fullWindow = window;
+                            window = null;
+                            Utils.unmap(fullWindow);
+                        }
+                        if (window == null) {
+                            window = target.map(MapMode.READ_WRITE, bytesWritten,
+                                    Math.min(MAPPED_OUTPUT_WINDOW_SIZE, size - bytesWritten));
+                        }
+                        bytesWritten += inflateInto(entryIdx, window);
+                    }
+                }
+            } finally {
+                if (window != null) {
+                    Utils.unmap(window);
+                }
+            }
+            if (bytesWritten < size) {
+                target.truncate(bytesWritten);
+            }
+            target.position(bytesWritten);
+            return bytesWritten;
+        }
+
+        /**
+         * Read or decompress the whole of a small entry at once, into the direct buffer that this EntryReader
+         * reuses for every entry, so that it can be written with a single write.
+         *
+         * @return the buffer, containing the entry data between its position and limit. The contents are only
+         *         valid until this EntryReader is next used.
+         * @throws ZipException
+         *             if the entry is larger than {@link #MAX_READ_FULLY_SIZE}, or its data is invalid.
+         */
+        public ByteBuffer readFully(final int entryIdx) throws IOException {
+            if (getSize(entryIdx) > MAX_READ_FULLY_SIZE) {
+                throw new ZipException("Zip entry is too large to read fully: " + getName(entryIdx));
+            }
+            if (outputBuf == null) {
+                outputBuf = ByteBuffer.allocateDirect(OUTPUT_BUF_SIZE);
+            }
+            outputBuf.clear();
+            if (!isDeflated(entryIdx)) {
+                var pos = getDataPos(entryIdx);
+                for (var remaining = getCompressedSize(entryIdx); remaining > 0;) {
+                    if (remaining > outputBuf.remaining()) {
+                        throw new ZipException("Zip entry is larger than its size: " + getName(entryIdx));
+                    }
+                    final var slice = mappedFile.slice(pos, remaining);
+                    pos += slice.remaining();
+                    remaining -= slice.remaining();
+                    bytesExtracted.add(slice.remaining());
+                    outputBuf.put(slice);
+                }
+            } else {
+                startInflating(entryIdx);
+                while (!isInflatingFinished()) {
+                    if (!outputBuf.hasRemaining()) {
+                        throw new ZipException("Zip entry is larger than its size: " + getName(entryIdx));
+                    }
+                    inflateInto(entryIdx, outputBuf);
+                }
+            }
+            outputBuf.flip();
+            return outputBuf;
+        }
+
+        /** Reset the inflater to decompress an entry from the mapped zipfile into the output buffer. */
+        private void startInflating(final int entryIdx) throws IOException {
+            if (outputBuf == null) {
+                outputBuf = ByteBuffer.allocateDirect(OUTPUT_BUF_SIZE);
+            }
+            inputPos = getDataPos(entryIdx);
+            inputRemaining = getCompressedSize(entryIdx);
+            if (fastInflater != null) {
+                fastInflater.reset();
+                try {
+                    fastInflater.setInput(mappedFile, inputPos, inputRemaining);
+                } catch (final DataFormatException e) {
+                    throw new ZipException(e.getMessage() + ": " + getName(entryIdx));
+                }
+            } else {
+                inflater.reset();
+                addedDummyByte = false;
+            }
+        }
+
+        /** Returns true once all the data of the entry being inflated has been produced. */
+        private boolean isInflatingFinished() {
+            return fastInflater != null ? fastInflater.finished() : inflater.finished();
+        }
+
+        /**
+         * Inflate into the remaining space of a buffer, feeding the inflater the next slice of the mapped zipfile
+         * if it needs input (there is more than one slice only if the compressed data spans a mapped segment
+         * boundary).
+         *
+         * @return the number of bytes inflated, which may be 0 if more input was needed.
+         */
+        private int inflateInto(final int entryIdx, final ByteBuffer dst) throws IOException {
+            try {
+                if (fastInflater != null) {
+                    final int bytesInflated;
+                    acquire(inflatePermits);
+                    try {
+                        bytesInflated = fastInflater.inflate(dst);
+                    } finally {
+                        release(inflatePermits);
+                    }
+                    bytesExtracted.add(bytesInflated);
+                    return bytesInflated;
+                }
+                final int bytesInflated;
+                acquire(inflatePermits);
+                try {
+                    bytesInflated = inflater.inflate(dst);
+                } finally {
+                    release(inflatePermits);
+                }
+                if (bytesInflated == 0 && !inflater.finished()) {
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException("Zip entry requires a preset dictionary: " + getName(entryIdx));
+                    } else if (inflater.needsInput()) {
+                        if (inputRemaining > 0) {
+                            final var slice = mappedFile.slice(inputPos, inputRemaining);
+                            inflater.setInput(slice);
+                            inputPos += slice.remaining();
+                            inputRemaining -= slice.remaining();
+                        } else if (!addedDummyByte) {
+                            inflater.setInput(ByteBuffer.allocate(1));
+                            addedDummyByte = true;
+                        } else {
+                            throw new EOFException("Unexpected end of zip entry data: " + getName(entryIdx));
+                        }
+                    }
+                }
+                bytesExtracted.add(bytesInflated);
+                return bytesInflated;
+            } catch (final DataFormatException e) {
+                if (fastInflater != null) {
+                    throw new ZipException(e.getMessage() + ": " + getName(entryIdx));
+                }
+                throw new ZipException(e.getMessage() != null ? e.getMessage() : "Invalid zip entry data format");
+            }
+        }
+
+        /** Release the Inflater. */
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+
+    /** An InputStream that reads entry data using positional reads, inflating it if necessary. */
+    private class EntryInputStream extends InputStream {
+        /** The inflater (null if ownsInflater is true and the entry is stored). */
+        private final Inflater inflater;
+
+        /** Buffer for compressed data. */
+        private final byte[] inputBuf;
+
+        /** If true, end the inflater when the stream is closed, otherwise reset it when the stream is reopened. */
+        private final boolean ownsInflater;
+
+        /** The file position of the next compressed byte to read. */
+        private long pos;
+
+        /** The number of compressed bytes left to read. */
+        private long remaining;
+
+        /** True if the entry is deflated. */
+        private boolean deflated;
+
+        /** True if the stream has been closed. */
+        private boolean closed;
+
+        /** True once the inflater has been given the extra dummy byte it requires at the end of nowrap input. */
+        private boolean addedDummyByte;
+
+        private final byte[] singleByteBuf = new byte[1];
+
+        /** Permits that must be held while inflating, or null if inflating is not limited. */
+        private Semaphore inflatePermits;
+
+        EntryInputStream(final Inflater inflater, final byte[] inputBuf, final boolean ownsInflater) {
+            this.inflater = inflater;
+            this.inputBuf = inputBuf;
+            this.ownsInflater = ownsInflater;
+        }
+
+        /** Start reading an entry. */
+        EntryInputStream open(final long pos, final long compressedSize, final boolean deflated) {
+            this.pos = pos;
+            this.remaining = compressedSize;
+            this.deflated = deflated;
+            this.closed = false;
+            this.addedDummyByte = false;
+            if (deflated && !ownsInflater) {
+                inflater.reset();
+            }
+            return this;
+        }
+
+        /** Read up to len compressed bytes from the zipfile into the array. */
+        private int readCompressed(final byte[] buf, final int off, final int len) throws IOException {
+            final var bytesToRead = (int) Math.min(len, remaining);
+            final var byteBuffer = ByteBuffer.wrap(buf, off, bytesToRead);
+            while (byteBuffer.hasRemaining()) {
+                final var bytesRead = fileChannel.read(byteBuffer, pos + byteBuffer.position() - off);
+                if (bytesRead < 0) {
+                    throw new EOFException("Unexpected end of zipfile");
+                }
+            }
+            pos += bytesToRead;
+            remaining -= bytesToRead;
+            return bytesToRead;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (!deflated) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                final var bytesRead = readCompressed(b, off, len);
+                bytesExtracted.add(bytesRead);
+                return bytesRead;
+            }
+            try {
+                int bytesInflated;
+                while (true) {
+                    acquire(inflatePermits);
+                    try {
+                        bytesInflated = inflater.inflate(b, off, len);
+                    } finally {
+                        release(inflatePermits);
+                    }
+                    if (bytesInflated > 0) {
+                        break;
+                    }
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        return -1;
+                    } else if (inflater.needsInput()) {
+                        if (remaining > 0) {
+                            inflater.setInput(inputBuf, 0, readCompressed(inputBuf, 0, inputBuf.length));
+                        } else if (!addedDummyByte) {
+                            inputBuf[0] = 0;
+                            inflater.setInput(inputBuf, 0, 1);
+                            addedDummyByte = true;
+                        } else {
+                            throw new EOFException("Unexpected end of zip entry data");
+                        }
+                    }
+                }
+                bytesExtracted.add(bytesInflated);
+                return bytesInflated;
+            } catch (final DataFormatException e) {
+                throw new ZipException(e.getMessage() != null ? e.getMessage() : "Invalid zip entry data format");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(singleByteBuf, 0, 1) == -1 ? -1 : singleByteBuf[0] & 0xff;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (ownsInflater && inflater != null) {
+                    inflater.end();
+                }
+            }
+        }
+    }
+
+    /** Acquire a permit, if permits is not null. */
+    private static void acquire(final Semaphore permits) throws InterruptedIOException {
+        if (permits != null) {
+            try {
+                permits.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to inflate");
+            }
+        }
+    }
+
+    /** Release a permit, if permits is not null. */
+    private static void release(final Semaphore permits) {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /** Close the zipfile. */
+    @Override
+    public void close() throws IOException {
+        mappedFile.close();
+        fileChannel.close();
+    }
+}
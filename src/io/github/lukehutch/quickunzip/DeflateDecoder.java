@@ -0,0 +1,649 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * The parts of a pure-Java DEFLATE (RFC 1951) decoder that do not depend on how output is stored: reading the
+ * input (typically as slices of the memory-mapped zipfile) through a 64-bit bit buffer, parsing block headers,
+ * and building Huffman decode tables. Subclasses decode the contents of stored and Huffman-coded blocks into their
+ * own output buffer, which must be written at {@link #outPos}, up to {@link #outLimit}.
+ *
+ * <p>
+ * Huffman codes are decoded with a single lookup in a table indexed by the next {@value #LITLEN_TABLE_BITS} (or
+ * {@value #DIST_TABLE_BITS}) bits, with subtables for longer codes, and literal/length table entries pack two
+ * literals whenever both codes fit within the table index, so that runs of literals decode two at a time.
+ *
+ * <p>
+ * Decoding may start at any bit position of the stream at which a block header starts, and may be stopped at the
+ * first block header at or after a given bit position, so that separate parts of a stream can be decoded
+ * independently.
+ */
+abstract class DeflateDecoder {
+    // Decode table entry layout: bits 0-3 hold the code length (the number of bits to consume), bits 4-7 hold
+    // the number of extra bits (for a length or distance base), or the number of index bits (for a subtable
+    // pointer), bits 8-15 hold flags, and bits 16-31 hold the value (a literal byte, a pair of literal bytes, a
+    // length or distance base, a code length code symbol, or the index of a subtable).
+
+    /** Entry is a literal byte. */
+    static final int F_LITERAL = 1 << 8;
+
+    /** Entry is a pair of literal bytes. */
+    static final int F_LITERAL_PAIR = 1 << 9;
+
+    /** Entry is a length or distance base, followed by extra bits. */
+    static final int F_BASE = 1 << 10;
+
+    /** Entry is the end-of-block code. */
+    static final int F_END_OF_BLOCK = 1 << 11;
+
+    /** Entry points to a subtable. */
+    static final int F_SUBTABLE = 1 << 12;
+
+    /** Entry is for an invalid code. */
+    static final int F_INVALID = 1 << 13;
+
+    static final int VALUE_SHIFT = 16;
+
+    static final int LITLEN_TABLE_BITS = 11;
+    static final int DIST_TABLE_BITS = 8;
+    private static final int CODELEN_TABLE_BITS = 7;
+    private static final int MAX_CODE_LEN = 15;
+    private static final int NUM_LITLEN_SYMS = 288;
+    private static final int NUM_DIST_SYMS = 32;
+
+    /** Main table size plus the largest possible total size of all subtables. */
+    private static final int LITLEN_TABLE_SIZE = (1 << LITLEN_TABLE_BITS)
+            + NUM_LITLEN_SYMS * (1 << (MAX_CODE_LEN - LITLEN_TABLE_BITS));
+    private static final int DIST_TABLE_SIZE = (1 << DIST_TABLE_BITS)
+            + NUM_DIST_SYMS * (1 << (MAX_CODE_LEN - DIST_TABLE_BITS));
+
+    private static final int KIND_LITLEN = 0;
+    private static final int KIND_DIST = 1;
+    private static final int KIND_CODELEN = 2;
+
+    private static final int[] LEN_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51,
+            59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    private static final int[] LEN_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4,
+            5, 5, 5, 5, 0 };
+    private static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385,
+            513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+    private static final int[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10,
+            10, 11, 11, 12, 12, 13, 13 };
+
+    /** The order in which code length code lengths are stored in a dynamic block header. */
+    private static final int[] CODELEN_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    /** The size of the sliding window. */
+    static final int WINDOW_SIZE = 32 * 1024;
+
+    /** The fixed Huffman tables of block type 1, shared by all instances. */
+    static final int[] FIXED_LITLEN_TABLE = new int[LITLEN_TABLE_SIZE];
+    static final int[] FIXED_DIST_TABLE = new int[DIST_TABLE_SIZE];
+
+    static {
+        final DeflateDecoder builder = new DeflateDecoder() {
+            @Override
+            void copyStored() {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            void decodeHuffman() {
+                throw new IllegalStateException();
+            }
+        };
+        final var lens = new byte[NUM_LITLEN_SYMS];
+        Arrays.fill(lens, 0, 144, (byte) 8);
+        Arrays.fill(lens, 144, 256, (byte) 9);
+        Arrays.fill(lens, 256, 280, (byte) 7);
+        Arrays.fill(lens, 280, 288, (byte) 8);
+        final var distLens = new byte[NUM_DIST_SYMS];
+        Arrays.fill(distLens, (byte) 5);
+        try {
+            builder.buildTable(lens, 0, NUM_LITLEN_SYMS, FIXED_LITLEN_TABLE, LITLEN_TABLE_BITS, KIND_LITLEN);
+            builder.buildTable(distLens, 0, NUM_DIST_SYMS, FIXED_DIST_TABLE, DIST_TABLE_BITS, KIND_DIST);
+        } catch (final DataFormatException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Decoder states
+    static final int STATE_BLOCK_HEADER = 0;
+    static final int STATE_STORED = 1;
+    static final int STATE_HUFFMAN = 2;
+    static final int STATE_DONE = 3;
+
+    /** Decoding was stopped at a block header, at or after the stop bit position. */
+    static final int STATE_STOPPED = 4;
+
+    int state;
+    private boolean finalBlock;
+    private int storedRemaining;
+
+    /** The number of block headers read since the decoder was reset. */
+    int numBlocks;
+
+    /** Tables of the current dynamic block. */
+    private final int[] dynamicLitlenTable = new int[LITLEN_TABLE_SIZE];
+    private final int[] dynamicDistTable = new int[DIST_TABLE_SIZE];
+    private final int[] codelenTable = new int[1 << CODELEN_TABLE_BITS];
+
+    /** Tables of the current block (either the fixed or the dynamic tables). */
+    int[] litlenTable;
+    int[] distTable;
+
+    // Scratch space for building tables
+    private final byte[] lens = new byte[NUM_LITLEN_SYMS + NUM_DIST_SYMS];
+    private final int[] lenCounts = new int[MAX_CODE_LEN + 1];
+    private final int[] offsets = new int[MAX_CODE_LEN + 2];
+    private final int[] sortedSyms = new int[NUM_LITLEN_SYMS];
+    private final int[] singleLiterals = new int[1 << LITLEN_TABLE_BITS];
+
+    /** The current input slice (a private little-endian buffer), read using absolute indexing. */
+    ByteBuffer in;
+    int inPos;
+    int inEnd;
+
+    /** The offset within the stream of index 0 of the current input slice. */
+    private long inBase;
+
+    /** The rest of the input, if the input spans more than one slice of a mapped file. */
+    private MappedFile nextInputFile;
+    private long nextInputPos;
+    private long nextInputRemaining;
+
+    /** The file position of the start of the stream, if the input is a mapped file. */
+    private long streamPos;
+
+    /** Bit buffer, consumed from the least significant bit. */
+    long bitBuf;
+    int bitCount;
+
+    /** The number of zero bytes added to the bit buffer past the end of the input. */
+    private int overrunBytes;
+
+    /** Decoding stops at the first block header that starts at or after this bit position of the stream. */
+    private long stopBit;
+
+    /** The output position, and the limit that the output position may not pass by more than one match. */
+    int outPos;
+    int outLimit;
+
+    /** Reset the decoder state and input, to start decoding a new stream. */
+    void resetDecoder() {
+        state = STATE_BLOCK_HEADER;
+        finalBlock = false;
+        numBlocks = 0;
+        in = null;
+        inPos = inEnd = 0;
+        inBase = 0;
+        nextInputFile = null;
+        nextInputRemaining = 0;
+        bitBuf = 0;
+        bitCount = 0;
+        overrunBytes = 0;
+        stopBit = Long.MAX_VALUE;
+    }
+
+    /** Set the input to the remaining bytes of the given buffer (the whole compressed stream). */
+    void setInput(final ByteBuffer input) {
+        in = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        inPos = in.position();
+        inEnd = in.limit();
+        inBase = -inPos;
+        nextInputFile = null;
+        nextInputRemaining = 0;
+    }
+
+    /** Set the input to the range {@code [pos, pos + len)} of the mapped file (the whole compressed stream). */
+    void setInput(final MappedFile mappedFile, final long pos, final long len)
+            throws IOException, DataFormatException {
+        setInput(mappedFile, pos, len, 0);
+    }
+
+    /**
+     * Set the input to the range {@code [pos, pos + len)} of the mapped file (the whole compressed stream), and
+     * skip to the given bit position within the stream, which must be the start of a block header.
+     */
+    void setInput(final MappedFile mappedFile, final long pos, final long len, final long startBit)
+            throws IOException, DataFormatException {
+        final var startByte = startBit >>> 3;
+        if (startByte > len) {
+            throw new DataFormatException("Start position is past the end of the deflate stream");
+        }
+        streamPos = pos;
+        nextInputFile = mappedFile;
+        nextInputPos = pos + startByte;
+        nextInputRemaining = len - startByte;
+        in = null;
+        inPos = inEnd = 0;
+        nextInput();
+        readBits((int) (startBit & 7));
+    }
+
+    /** Move on to the next slice of the mapped input file, if any. Returns false if there is no more input. */
+    private boolean nextInput() throws IOException {
+        if (nextInputRemaining <= 0) {
+            return false;
+        }
+        in = nextInputFile.slice(nextInputPos, nextInputRemaining);
+        inPos = 0;
+        inEnd = in.limit();
+        inBase = nextInputPos - streamPos;
+        nextInputPos += inEnd;
+        nextInputRemaining -= inEnd;
+        return true;
+    }
+
+    /** Stop decoding at the first block header that starts at or after the given bit position of the stream. */
+    void setStopBit(final long stopBit) {
+        this.stopBit = stopBit;
+    }
+
+    /** Returns true if decoding has stopped at a block header, at or after the stop bit position. */
+    boolean isStopped() {
+        return state == STATE_STOPPED;
+    }
+
+    /** Continue decoding after stopping at a block header, until the given stop bit position. */
+    void resume(final long stopBit) {
+        if (state == STATE_STOPPED) {
+            state = STATE_BLOCK_HEADER;
+        }
+        this.stopBit = stopBit;
+    }
+
+    /** The bit position within the stream of the next bit to be decoded. */
+    long getBitPosition() {
+        return (inBase + inPos + overrunBytes) * 8 - bitCount;
+    }
+
+    /**
+     * Returns true if the end of the final block has been reached, or if decoding has stopped at the stop bit
+     * position.
+     */
+    boolean isDecodingDone() {
+        return state >= STATE_DONE;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Refill the bit buffer so that it contains at least 56 bits. */
+    void refill() throws IOException, DataFormatException {
+        if (inEnd - inPos >= 8) {
+            bitBuf |= in.getLong(inPos) << bitCount;
+            inPos += (63 - bitCount) >>> 3;
+            bitCount |= 56;
+        } else {
+            refillSlow();
+        }
+    }
+
+    /**
+     * Refill the bit buffer a byte at a time, moving on to the next input slice if needed, and padding with zeroes
+     * past the end of the input (a stream that is not truncated never consumes the padding).
+     */
+    void refillSlow() throws IOException, DataFormatException {
+        while (bitCount < 56) {
+            if (inPos < inEnd) {
+                bitBuf |= (in.get(inPos++) & 0xffL) << bitCount;
+                bitCount += 8;
+            } else if (!nextInput()) {
+                if (++overrunBytes > 8) {
+                    throw new DataFormatException("Unexpected end of deflate stream");
+                }
+                bitCount += 8;
+            }
+        }
+    }
+
+    /** Throw an exception if any padding past the end of the input has been consumed. */
+    private void checkOverrun() throws DataFormatException {
+        if (overrunBytes * 8 > bitCount) {
+            throw new DataFormatException("Unexpected end of deflate stream");
+        }
+    }
+
+    /** Read n bits, where n is at most 16. */
+    int readBits(final int n) throws IOException, DataFormatException {
+        if (bitCount < n) {
+            refill();
+        }
+        final var bits = (int) bitBuf & ((1 << n) - 1);
+        bitBuf >>>= n;
+        bitCount -= n;
+        return bits;
+    }
+
+    /** Decode blocks until the output position reaches the output limit, or decoding is done. */
+    void decodeBlocks() throws IOException, DataFormatException {
+        while (outPos < outLimit && state < STATE_DONE) {
+            switch (state) {
+            case STATE_BLOCK_HEADER:
+                if (getBitPosition() >= stopBit) {
+                    state = STATE_STOPPED;
+                } else {
+                    decodeBlockHeader();
+                }
+                break;
+            case STATE_STORED:
+                copyStored();
+                break;
+            case STATE_HUFFMAN:
+                decodeHuffman();
+                break;
+            default:
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    /** Start decoding the next block. */
+    private void decodeBlockHeader() throws IOException, DataFormatException {
+        numBlocks++;
+        finalBlock = readBits(1) != 0;
+        final var blockType = readBits(2);
+        switch (blockType) {
+        case 0:
+            // Stored block: skip to a byte boundary, then read the length and its complement
+            readBits(bitCount & 7);
+            final var len = readBits(16);
+            final var nlen = readBits(16);
+            if (len != (~nlen & 0xffff)) {
+                throw new DataFormatException("Invalid stored block lengths");
+            }
+            storedRemaining = len;
+            state = STATE_STORED;
+            break;
+        case 1:
+            litlenTable = FIXED_LITLEN_TABLE;
+            distTable = FIXED_DIST_TABLE;
+            state = STATE_HUFFMAN;
+            break;
+        case 2:
+            readDynamicTables();
+            litlenTable = dynamicLitlenTable;
+            distTable = dynamicDistTable;
+            state = STATE_HUFFMAN;
+            break;
+        default:
+            throw new DataFormatException("Invalid block type");
+        }
+    }
+
+    /**
+     * Try reading a non-final dynamic block header, including its code lengths, at the given bit position of the
+     * stream. Returns true if the header is valid, which makes the position a likely (but not certain) block
+     * boundary.
+     */
+    boolean tryDynamicBlockHeader(final MappedFile mappedFile, final long pos, final long len, final long bit)
+            throws IOException {
+        resetDecoder();
+        try {
+            setInput(mappedFile, pos, len, bit);
+            if (readBits(3) != 4) {
+                return false;
+            }
+            readDynamicTables();
+            checkOverrun();
+            return true;
+        } catch (final DataFormatException e) {
+            return false;
+        }
+    }
+
+    /** The current block has ended. */
+    void endBlock() throws DataFormatException {
+        if (finalBlock) {
+            checkOverrun();
+            state = STATE_DONE;
+        } else {
+            state = STATE_BLOCK_HEADER;
+        }
+    }
+
+    /** Copy (some of) the data of a stored block into the output, by calling {@link #readStored}. */
+    abstract void copyStored() throws IOException, DataFormatException;
+
+    /** Decode the symbols of a Huffman-coded block, until the end of the block, or until the output is full. */
+    abstract void decodeHuffman() throws IOException, DataFormatException;
+
+    /**
+     * Read up to maxLen bytes of the current stored block into dst, ending the block once all of its bytes have
+     * been read.
+     *
+     * @return the number of bytes read.
+     */
+    int readStored(final byte[] dst, final int dstOff, final int maxLen) throws IOException, DataFormatException {
+        final var len = Math.min(maxLen, storedRemaining);
+        var n = 0;
+        // Whole bytes that were already read into the bit buffer come first
+        while (n < len && bitCount >= 8) {
+            dst[dstOff + n++] = (byte) bitBuf;
+            bitBuf >>>= 8;
+            bitCount -= 8;
+        }
+        checkOverrun();
+        if (n < len) {
+            // The bit buffer is empty, so discard any bits above bitCount, since the input is read directly
+            bitBuf = 0;
+            while (n < len) {
+                if (inPos == inEnd && !nextInput()) {
+                    throw new DataFormatException("Unexpected end of deflate stream");
+                }
+                final var k = Math.min(len - n, inEnd - inPos);
+                in.position(inPos);
+                in.get(dst, dstOff + n, k);
+                inPos += k;
+                n += k;
+            }
+        }
+        storedRemaining -= n;
+        if (storedRemaining == 0) {
+            endBlock();
+        }
+        return n;
+    }
+
+    /** Read the code lengths of a dynamic block, and build its tables. */
+    private void readDynamicTables() throws IOException, DataFormatException {
+        final var numLitlenCodes = readBits(5) + 257;
+        final var numDistCodes = readBits(5) + 1;
+        final var numCodelenCodes = readBits(4) + 4;
+        if (numLitlenCodes > 286 || numDistCodes > 30) {
+            throw new DataFormatException("Too many length or distance symbols");
+        }
+        Arrays.fill(lens, 0, 19, (byte) 0);
+        for (int i = 0; i < numCodelenCodes; i++) {
+            lens[CODELEN_ORDER[i]] = (byte) readBits(3);
+        }
+        buildTable(lens, 0, 19, codelenTable, CODELEN_TABLE_BITS, KIND_CODELEN);
+
+        final var numCodes = numLitlenCodes + numDistCodes;
+        for (int i = 0; i < numCodes;) {
+            if (bitCount < CODELEN_TABLE_BITS + 7) {
+                refill();
+            }
+            final var entry = codelenTable[(int) bitBuf & ((1 << CODELEN_TABLE_BITS) - 1)];
+            if ((entry & F_INVALID) != 0) {
+                throw new DataFormatException("Invalid code lengths set");
+            }
+            final var codeLen = entry & 0xf;
+            bitBuf >>>= codeLen;
+            bitCount -= codeLen;
+            final var sym = entry >>> VALUE_SHIFT;
+            if (sym < 16) {
+                lens[i++] = (byte) sym;
+            } else {
+                byte repeatedLen = 0;
+                int repeatCount;
+                if (sym == 16) {
+                    if (i == 0) {
+                        throw new DataFormatException("Invalid bit length repeat");
+                    }
+                    repeatedLen = lens[i - 1];
+                    repeatCount = 3 + readBits(2);
+                } else if (sym == 17) {
+                    repeatCount = 3 + readBits(3);
+                } else {
+                    repeatCount = 11 + readBits(7);
+                }
+                if (i + repeatCount > numCodes) {
+                    throw new DataFormatException("Invalid bit length repeat");
+                }
+                Arrays.fill(lens, i, i + repeatCount, repeatedLen);
+                i += repeatCount;
+            }
+        }
+        if (lens[256] == 0) {
+            throw new DataFormatException("Invalid code -- missing end-of-block");
+        }
+        buildTable(lens, 0, numLitlenCodes, dynamicLitlenTable, LITLEN_TABLE_BITS, KIND_LITLEN);
+        buildTable(lens, numLitlenCodes, numDistCodes, dynamicDistTable, DIST_TABLE_BITS, KIND_DIST);
+    }
+
+    /** The decode table entry for a symbol (excluding the code length). */
+    private static int symbolEntry(final int sym, final int kind) {
+        switch (kind) {
+        case KIND_LITLEN:
+            if (sym < 256) {
+                return F_LITERAL | (sym << VALUE_SHIFT);
+            } else if (sym == 256) {
+                return F_END_OF_BLOCK;
+            } else if (sym < 286) {
+                return F_BASE | (LEN_BASE[sym - 257] << VALUE_SHIFT) | (LEN_EXTRA[sym - 257] << 4);
+            } else {
+                return F_INVALID;
+            }
+        case KIND_DIST:
+            return sym < 30 ? F_BASE | (DIST_BASE[sym] << VALUE_SHIFT) | (DIST_EXTRA[sym] << 4) : F_INVALID;
+        default:
+            return sym << VALUE_SHIFT;
+        }
+    }
+
+    /**
+     * Build a decode table for the canonical Huffman code with the given code lengths. Codes longer than
+     * tableBits are decoded with a second lookup in a subtable, indexed by the remaining bits of the code.
+     */
+    private void buildTable(final byte[] codeLens, final int lensOff, final int numSyms, final int[] table,
+            final int tableBits, final int kind) throws DataFormatException {
+        Arrays.fill(lenCounts, 0);
+        for (int i = 0; i < numSyms; i++) {
+            lenCounts[codeLens[lensOff + i]]++;
+        }
+        lenCounts[0] = 0;
+        var maxLen = 0;
+        for (int len = 1; len <= MAX_CODE_LEN; len++) {
+            if (lenCounts[len] != 0) {
+                maxLen = len;
+            }
+        }
+        final var mainTableSize = 1 << tableBits;
+        Arrays.fill(table, 0, mainTableSize, F_INVALID | tableBits);
+        if (maxLen == 0) {
+            // No codes (e.g. a block with no distance codes) -- any use of the table is an error
+            return;
+        }
+
+        // Check for an over-subscribed or incomplete code. (A single code of length 1 is allowed.)
+        var left = 1;
+        for (int len = 1; len <= MAX_CODE_LEN; len++) {
+            left = (left << 1) - lenCounts[len];
+            if (left < 0) {
+                throw new DataFormatException("Over-subscribed Huffman code");
+            }
+        }
+        if (left > 0 && (kind == KIND_CODELEN || maxLen != 1)) {
+            throw new DataFormatException("Incomplete Huffman code");
+        }
+
+        // Sort symbols by code length, then by symbol value
+        offsets[1] = 0;
+        for (int len = 1; len < MAX_CODE_LEN; len++) {
+            offsets[len + 1] = offsets[len] + lenCounts[len];
+        }
+        for (int sym = 0; sym < numSyms; sym++) {
+            final var len = codeLens[lensOff + sym];
+            if (len != 0) {
+                sortedSyms[offsets[len]++] = sym;
+            }
+        }
+
+        // Assign canonical codes in order, and fill the table entries for each code. Codes are stored
+        // bit-reversed, since the bit buffer is consumed from the least significant bit.
+        final var subtableBits = Math.max(0, maxLen - tableBits);
+        var nextSubtable = mainTableSize;
+        var code = 0;
+        var sortedIdx = 0;
+        for (int len = 1; len <= maxLen; len++) {
+            for (int i = 0; i < lenCounts[len]; i++, code++) {
+                final var sym = sortedSyms[sortedIdx++];
+                final var reversed = Integer.reverse(code) >>> (32 - len);
+                final var entry = symbolEntry(sym, kind);
+                if (len <= tableBits) {
+                    for (int j = reversed; j < mainTableSize; j += 1 << len) {
+                        table[j] = entry | len;
+                    }
+                } else {
+                    final var prefix = reversed & (mainTableSize - 1);
+                    if ((table[prefix] & F_SUBTABLE) == 0) {
+                        table[prefix] = F_SUBTABLE | (nextSubtable << VALUE_SHIFT) | (subtableBits << 4)
+                                | tableBits;
+                        Arrays.fill(table, nextSubtable, nextSubtable + (1 << subtableBits),
+                                F_INVALID | subtableBits);
+                        nextSubtable += 1 << subtableBits;
+                    }
+                    final var subtableStart = table[prefix] >>> VALUE_SHIFT;
+                    final var subLen = len - tableBits;
+                    for (int j = reversed >>> tableBits; j < 1 << subtableBits; j += 1 << subLen) {
+                        table[subtableStart + j] = entry | subLen;
+                    }
+                }
+            }
+            code <<= 1;
+        }
+
+        if (kind == KIND_LITLEN) {
+            // Wherever the bits remaining in the table index after a literal code also fully determine a
+            // second literal code, replace the entry with an entry for the pair of literals
+            System.arraycopy(table, 0, singleLiterals, 0, mainTableSize);
+            for (int i = 0; i < mainTableSize; i++) {
+                final var first = singleLiterals[i];
+                if ((first & F_LITERAL) != 0) {
+                    final var firstLen = first & 0xf;
+                    final var second = singleLiterals[i >>> firstLen];
+                    final var secondLen = second & 0xf;
+                    if ((second & F_LITERAL) != 0 && firstLen + secondLen <= tableBits) {
+                        table[i] = F_LITERAL_PAIR | ((first >>> VALUE_SHIFT) << VALUE_SHIFT)
+                                | ((second >>> VALUE_SHIFT) << (VALUE_SHIFT + 8)) | (firstLen + secondLen);
+                    }
+                }
+            }
+        }
+    }
+}
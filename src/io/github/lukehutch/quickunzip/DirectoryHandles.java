@@ -0,0 +1,339 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedDirectoryStreamException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates output files relative to open handles of the directories of a {@link DirectoryTree}, rather than by
+ * absolute path, so that the kernel does not walk every component of the path of every file.
+ *
+ * <p>
+ * On Linux, a {@link SecureDirectoryStream} wraps a directory file descriptor, and files are opened relative to it
+ * with {@code openat}. Each directory is opened relative to its parent directory, and directories and files are
+ * opened with {@link LinkOption#NOFOLLOW_LINKS}, so no symbolic link is followed below the root directory, and
+ * files can only be created inside the tree. Files are created with {@link StandardOpenOption#CREATE_NEW}
+ * ({@code O_EXCL}), so no separate check for an existing file is needed.
+ *
+ * <p>
+ * A directory is opened the first time a file is created in it, and closed once all of its files have been
+ * created and all of its subdirectories have been closed. At most {@link #MAX_OPEN_HANDLES} directories are open
+ * at once; beyond that, and on platforms without {@link SecureDirectoryStream}, files are created by absolute path
+ * (still without following a symbolic link at the file itself).
+ */
+class DirectoryHandles implements AutoCloseable {
+    /** The maximum number of directory handles open at once, well below the usual file descriptor limit. */
+    static final int MAX_OPEN_HANDLES = 256;
+
+    private static final Set<OpenOption> CREATE_OPTIONS = Set.of(StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+
+    private static final Set<OpenOption> WRITE_OPTIONS = Set.of(StandardOpenOption.WRITE,
+            LinkOption.NOFOLLOW_LINKS);
+
+    // Files are also opened for reading if they may be mapped, since a FileChannel requires it
+    private static final Set<OpenOption> CREATE_READABLE_OPTIONS = Set.of(StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+
+    private static final Set<OpenOption> WRITE_READABLE_OPTIONS = Set.of(StandardOpenOption.READ,
+            StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+
+    private final DirectoryTree directoryTree;
+    private final Set<OpenOption> createOptions;
+    private final Set<OpenOption> writeOptions;
+    private final boolean overwrite;
+    private final boolean verbose;
+    private final AtomicReferenceArray<SecureDirectoryStream<Path>> handles;
+
+    /** The number of users of each directory that are not done with it yet. */
+    private final AtomicIntegerArray numUsersRemaining;
+
+    /** One bit per entry, set once the entry is done with its directory, so that it is released only once. */
+    private final AtomicLongArray entriesReleased;
+
+    /** Whether directory handles are used. */
+    private final boolean enabled;
+
+    // Guarded by this
+    private boolean closed;
+    private int numOpen;
+    private int maxNumOpen;
+    private int numOpened;
+
+    private final LongAdder numCreatedRelative = new LongAdder();
+    private final LongAdder numCreatedByPath = new LongAdder();
+
+    /**
+     * Create files in the directories of the tree (which must already have been created), relative to directory
+     * handles, if enabled and supported by the platform. Existing files are replaced if overwrite is true. Files
+     * are opened for reading as well as writing if readable is true.
+     */
+    DirectoryHandles(final DirectoryTree directoryTree, final boolean enabled, final boolean overwrite,
+            final boolean readable, final boolean verbose) {
+        this.directoryTree = directoryTree;
+        this.createOptions = readable ? CREATE_READABLE_OPTIONS : CREATE_OPTIONS;
+        this.writeOptions = readable ? WRITE_READABLE_OPTIONS : WRITE_OPTIONS;
+        this.overwrite = overwrite;
+        this.verbose = verbose;
+        final var numDirs = directoryTree.getNumDirs();
+        handles = new AtomicReferenceArray<>(numDirs);
+        numUsersRemaining = new AtomicIntegerArray(numDirs);
+        for (int i = 0; i < numDirs; i++) {
+            numUsersRemaining.set(i, directoryTree.getNumUsers(i));
+        }
+        entriesReleased = new AtomicLongArray((directoryTree.getNumEntries() + 63) / 64);
+        var rootHandleOpened = false;
+        if (enabled) {
+            try {
+                final var rootStream = Files.newDirectoryStream(directoryTree.getDirPath(0));
+                if (rootStream instanceof SecureDirectoryStream) {
+                    handles.set(0, (SecureDirectoryStream<Path>) rootStream);
+                    numOpen = maxNumOpen = numOpened = 1;
+                    rootHandleOpened = true;
+                } else {
+                    // Not supported on this platform
+                    rootStream.close();
+                }
+            } catch (final IOException e) {
+                // Fall back to creating files by path
+            }
+        }
+        this.enabled = rootHandleOpened;
+    }
+
+    /**
+     * Get the handle of a directory, opening it (and any of its ancestors that are not open) if needed.
+     *
+     * @return the handle, or null if handles are not used, or too many handles are open.
+     * @throws IOException
+     *             if the directory could not be opened (e.g. because it has been replaced by a symbolic link).
+     */
+    private SecureDirectoryStream<Path> getHandle(final int dirIdx) throws IOException {
+        final var handle = handles.get(dirIdx);
+        if (handle != null || !enabled) {
+            return handle;
+        }
+        synchronized (this) {
+            return openHandle(dirIdx);
+        }
+    }
+
+    /** Open the handle of a directory relative to the handle of its parent, while holding the lock. */
+    private SecureDirectoryStream<Path> openHandle(final int dirIdx) throws IOException {
+        var handle = handles.get(dirIdx);
+        if (handle != null || closed || numOpen >= MAX_OPEN_HANDLES || numUsersRemaining.get(dirIdx) <= 0) {
+            return handle;
+        }
+        final var parentHandle = openHandle(directoryTree.getParentDirIdx(dirIdx));
+        if (parentHandle == null) {
+            return null;
+        }
+        handle = parentHandle.newDirectoryStream(directoryTree.getDirPath(dirIdx).getFileName(),
+                LinkOption.NOFOLLOW_LINKS);
+        handles.set(dirIdx, handle);
+        numOpen++;
+        numOpened++;
+        maxNumOpen = Math.max(maxNumOpen, numOpen);
+        return handle;
+    }
+
+    /** Close the handle of a directory, if it is open. */
+    private synchronized void closeHandle(final int dirIdx) {
+        final var handle = handles.getAndSet(dirIdx, null);
+        if (handle != null) {
+            numOpen--;
+            closeQuietly(handle);
+        }
+    }
+
+    private static void closeQuietly(final DirectoryStream<Path> handle) {
+        try {
+            handle.close();
+        } catch (final IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Record that a user of a directory is done with it, closing the directory (and any of its ancestors that
+     * have no users left) if it was the last user.
+     */
+    private void releaseDir(final int dirIdx) {
+        for (var i = dirIdx; i >= 0 && numUsersRemaining.decrementAndGet(i) == 0; i = directoryTree
+                .getParentDirIdx(i)) {
+            closeHandle(i);
+        }
+    }
+
+    /**
+     * Record that a file entry is done with its directory, closing the directory if it was the last user. This is
+     * called by {@link #newFile(int, Path)}, and must also be called for an entry whose file is never created (e.g.
+     * because extracting it failed, or it was skipped). Only the first call for each entry has any effect.
+     */
+    void releaseEntry(final int entryIdx) {
+        final var dirIdx = directoryTree.getEntryDirIdx(entryIdx);
+        final var bit = 1L << (entryIdx & 63);
+        if (dirIdx >= 0 && (entriesReleased.getAndAccumulate(entryIdx >>> 6, bit, (a, b) -> a | b) & bit) == 0) {
+            releaseDir(dirIdx);
+        }
+    }
+
+    /**
+     * Returns true if the output file of an entry already exists, and overwrite is false, so the entry should be
+     * skipped. This is checked before decompressing an entry whose file is created later, on another thread, so
+     * that the entry is not decompressed only to be discarded.
+     */
+    boolean skipExisting(final int entryIdx, final Path entryPath) throws IOException {
+        if (overwrite) {
+            return false;
+        }
+        final var dirIdx = directoryTree.getEntryDirIdx(entryIdx);
+        final var handle = dirIdx >= 0 ? getHandle(dirIdx) : null;
+        boolean exists;
+        if (handle != null) {
+            try {
+                handle.getFileAttributeView(entryPath.getFileName(), BasicFileAttributeView.class,
+                        LinkOption.NOFOLLOW_LINKS).readAttributes();
+                exists = true;
+            } catch (final NoSuchFileException e) {
+                exists = false;
+            }
+        } else {
+            exists = Files.exists(entryPath, LinkOption.NOFOLLOW_LINKS);
+        }
+        if (exists && verbose) {
+            System.out.println("Already exists: " + getRelativePath(entryPath));
+        }
+        return exists;
+    }
+
+    /**
+     * Create the output file of an entry, at entryPath, which must be in the directory of the entry in the tree,
+     * and release the directory (see {@link #releaseEntry(int)}). This must be called at most once per file entry.
+     *
+     * @return the channel of the new file, or null if the file already exists, and overwrite is false.
+     */
+    FileChannel newFile(final int entryIdx, final Path entryPath) throws IOException {
+        final var dirIdx = directoryTree.getEntryDirIdx(entryIdx);
+        try {
+            final var handle = dirIdx >= 0 ? getHandle(dirIdx) : null;
+            FileChannel channel;
+            if (handle != null) {
+                final var fileName = entryPath.getFileName();
+                if (overwrite) {
+                    try {
+                        handle.deleteFile(fileName);
+                    } catch (final NoSuchFileException e) {
+                        // Nothing to overwrite
+                    }
+                }
+                final var byteChannel = handle.newByteChannel(fileName, createOptions);
+                if (byteChannel instanceof FileChannel) {
+                    channel = (FileChannel) byteChannel;
+                } else {
+                    // Not expected on any platform with SecureDirectoryStream -- reopen by path
+                    byteChannel.close();
+                    channel = FileChannel.open(entryPath, writeOptions);
+                }
+                numCreatedRelative.increment();
+            } else {
+                if (overwrite) {
+                    Files.deleteIfExists(entryPath);
+                }
+                channel = FileChannel.open(entryPath, createOptions);
+                numCreatedByPath.increment();
+            }
+            if (verbose) {
+                System.out.println("     Unzipping: " + getRelativePath(entryPath));
+            }
+            return channel;
+        } catch (final FileAlreadyExistsException e) {
+            if (verbose) {
+                System.out.println("Already exists: " + getRelativePath(entryPath));
+            }
+            return null;
+        } finally {
+            releaseEntry(entryIdx);
+        }
+    }
+
+    /** Open a file that was created with {@link #newFile(int, Path)} for writing. */
+    FileChannel openFile(final int entryIdx, final Path entryPath) throws IOException {
+        final var dirIdx = directoryTree.getEntryDirIdx(entryIdx);
+        final var handle = dirIdx >= 0 ? handles.get(dirIdx) : null;
+        if (handle != null) {
+            try {
+                final var byteChannel = handle.newByteChannel(entryPath.getFileName(), writeOptions);
+                if (byteChannel instanceof FileChannel) {
+                    return (FileChannel) byteChannel;
+                }
+                byteChannel.close();
+            } catch (final IOException | ClosedDirectoryStreamException e) {
+                // The handle may have been closed concurrently, once the directory had no users left
+            }
+        }
+        return FileChannel.open(entryPath, writeOptions);
+    }
+
+    /** The path of a file relative to the root directory, for messages. */
+    private String getRelativePath(final Path path) {
+        return directoryTree.getDirPath(0).relativize(path).toString();
+    }
+
+    /** Close all open directory handles. Files are created by path after this is called. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < handles.length(); i++) {
+            final var handle = handles.getAndSet(i, null);
+            if (handle != null) {
+                closeQuietly(handle);
+            }
+        }
+        numOpen = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return enabled
+                ? String.format("Created %d files relative to directory handles, %d by path; opened %d directory "
+                        + "handles, at most %d at once", numCreatedRelative.sum(), numCreatedByPath.sum(),
+                        numOpened, maxNumOpen)
+                : "Created " + numCreatedByPath.sum() + " files by path (directory handles not used)";
+    }
+}
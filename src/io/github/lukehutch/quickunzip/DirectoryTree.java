@@ -0,0 +1,289 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The tree of directories that the entries of a zipfile are extracted into, derived from the entry names before
+ * extraction starts. The directories are created level by level (each level in parallel, since the directories of
+ * a level only depend on the level above), and each entry is mapped to the directory it is extracted into, so that
+ * worker threads look up the directory of an entry without hashing paths, locking, or checking for the directory
+ * on disk.
+ *
+ * <p>
+ * Entry paths are normalized, and entries whose path would be outside the root directory (e.g. paths containing
+ * "../" that lead out of the root) are rejected. Existing symbolic links below the root directory are not
+ * followed.
+ */
+class DirectoryTree {
+    /** Levels with fewer directories than this are created by the calling thread alone. */
+    private static final int MIN_PARALLEL_LEVEL_SIZE = 16;
+
+    private final Path rootDir;
+    private final boolean verbose;
+
+    /** The paths of the directories, each after its parent directory. The root directory is at index 0. */
+    private final Path[] dirPaths;
+
+    /** The index of the parent directory of each directory (-1 for the root directory). */
+    private final int[] parentDirIdxs;
+
+    /** The depth of each directory below the root directory. */
+    private final int[] depths;
+
+    /** Whether each directory exists, once the directories have been created. */
+    private final boolean[] dirExists;
+
+    /**
+     * The index of the directory that each entry is extracted into (the parent directory of a file entry, or the
+     * directory itself for a directory entry), or -1 if the path of the entry is not valid.
+     */
+    private final int[] entryDirIdxs;
+
+    /** The number of file entries extracted into each directory, plus the number of its subdirectories. */
+    private final int[] numUsers;
+
+    private int maxDepth;
+    private final AtomicInteger numCreated = new AtomicInteger();
+    private long createNanos;
+
+    /** Derive the directory tree from the names of the entries of a zipfile extracted into rootDir. */
+    DirectoryTree(final ConcurrentZipReader zipReader, final Path rootDir, final boolean verbose)
+            throws IOException {
+        this.rootDir = rootDir;
+        this.verbose = verbose;
+        final var dirIdxs = new HashMap<Path, Integer>();
+        final var dirPathList = new ArrayList<Path>();
+        final var parentDirIdxList = new ArrayList<Integer>();
+        dirIdxs.put(rootDir, 0);
+        dirPathList.add(rootDir);
+        parentDirIdxList.add(-1);
+        entryDirIdxs = new int[zipReader.size()];
+        for (int i = 0; i < entryDirIdxs.length; i++) {
+            final var entryName = getRelativeEntryName(zipReader.getName(i));
+            final var dirPath = getDirPath(entryName, zipReader.isDirectory(i));
+            entryDirIdxs[i] = dirPath == null ? -1 : addDir(dirPath, dirIdxs, dirPathList, parentDirIdxList);
+        }
+        dirPaths = dirPathList.toArray(new Path[0]);
+        parentDirIdxs = new int[dirPaths.length];
+        depths = new int[dirPaths.length];
+        for (int i = 1; i < dirPaths.length; i++) {
+            parentDirIdxs[i] = parentDirIdxList.get(i);
+            depths[i] = depths[parentDirIdxs[i]] + 1;
+            maxDepth = Math.max(maxDepth, depths[i]);
+        }
+        dirExists = new boolean[dirPaths.length];
+        numUsers = new int[dirPaths.length];
+        for (int i = 0; i < entryDirIdxs.length; i++) {
+            if (entryDirIdxs[i] >= 0 && !zipReader.isDirectory(i)) {
+                numUsers[entryDirIdxs[i]]++;
+            }
+        }
+        for (int i = 1; i < dirPaths.length; i++) {
+            numUsers[parentDirIdxs[i]]++;
+        }
+    }
+
+    /**
+     * Get the directory that an entry is extracted into, or return null if the path of the entry is not valid, or
+     * would be outside the root directory.
+     */
+    private Path getDirPath(final String entryName, final boolean isDirectory) {
+        try {
+            // Normalize the path, so that paths that use "../" cannot break out of the root directory
+            final var entryPath = rootDir.resolve(entryName).normalize();
+            if (!entryPath.startsWith(rootDir) || !isDirectory && entryPath.equals(rootDir)) {
+                if (verbose) {
+                    System.out.println("      Bad path: " + entryName);
+                }
+                return null;
+            }
+            if (isDirectory) {
+                return entryPath;
+            }
+            // The file is created in its parent directory, under the last segment of its name
+            final var leafName = getLeafName(entryName);
+            if (leafName.equals(".") || leafName.equals("..")) {
+                if (verbose) {
+                    System.out.println("      Bad path: " + entryName);
+                }
+                return null;
+            }
+            return entryPath.getParent();
+        } catch (final InvalidPathException ex) {
+            if (verbose) {
+                System.out.println("  Invalid path: " + entryName);
+            }
+            return null;
+        }
+    }
+
+    /** Get the index of a directory, adding it and any of its ancestors that have not been seen yet. */
+    private static int addDir(final Path dirPath, final HashMap<Path, Integer> dirIdxs,
+            final ArrayList<Path> dirPathList, final ArrayList<Integer> parentDirIdxList) {
+        final var dirIdx = dirIdxs.get(dirPath);
+        if (dirIdx != null) {
+            return dirIdx;
+        }
+        // The root directory is always in the map, so this terminates
+        final var parentDirIdx = addDir(dirPath.getParent(), dirIdxs, dirPathList, parentDirIdxList);
+        final var newDirIdx = dirPathList.size();
+        dirIdxs.put(dirPath, newDirIdx);
+        dirPathList.add(dirPath);
+        parentDirIdxList.add(parentDirIdx);
+        return newDirIdx;
+    }
+
+    /** Strip any leading "/" from an entry name. */
+    static String getRelativeEntryName(final String entryName) {
+        var relativeName = entryName;
+        while (relativeName.startsWith("/")) {
+            relativeName = relativeName.substring(1);
+        }
+        return relativeName;
+    }
+
+    /** Get the last segment of an entry name (the file name). */
+    static String getLeafName(final String entryName) {
+        return entryName.substring(entryName.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Create the directories, one level at a time, on the calling thread and up to numHelpers threads of the
+     * executor. A directory is only created if its parent directory exists.
+     */
+    void createDirectories(final ExecutorService executor, final int numHelpers) throws InterruptedException {
+        final var startTime = System.nanoTime();
+        // Sort the directories by depth (counting sort)
+        final var levelStart = new int[maxDepth + 2];
+        for (int i = 0; i < dirPaths.length; i++) {
+            levelStart[depths[i] + 1]++;
+        }
+        for (int d = 1; d < levelStart.length; d++) {
+            levelStart[d] += levelStart[d - 1];
+        }
+        final var dirsByLevel = new int[dirPaths.length];
+        final var levelPos = levelStart.clone();
+        for (int i = 0; i < dirPaths.length; i++) {
+            dirsByLevel[levelPos[depths[i]]++] = i;
+        }
+        // The root directory already exists
+        dirExists[0] = true;
+        for (int d = 1; d <= maxDepth; d++) {
+            final var start = levelStart[d];
+            final var numDirs = levelStart[d + 1] - start;
+            try {
+                Utils.parallelFor(executor, numDirs < MIN_PARALLEL_LEVEL_SIZE ? 0 : numHelpers, numDirs,
+                        i -> createDirectory(dirsByLevel[start + i]));
+            } catch (InterruptedException | RuntimeException e) {
+                throw e;
+            } catch (final Exception e) {
+                // Not thrown by createDirectory
+                throw new RuntimeException(e);
+            }
+        }
+        createNanos = System.nanoTime() - startTime;
+    }
+
+    /** Create a directory, if its parent directory exists. */
+    private void createDirectory(final int dirIdx) {
+        if (!dirExists[parentDirIdxs[dirIdx]]) {
+            return;
+        }
+        final var dir = dirPaths[dirIdx].toFile();
+        // Try mkdir first, since most directories don't exist yet, then check why it failed. A symbolic link to a
+        // directory is not used, so that nothing is extracted outside the root directory.
+        final var created = dir.mkdir();
+        final var exists = created || Files.isDirectory(dirPaths[dirIdx], LinkOption.NOFOLLOW_LINKS);
+        dirExists[dirIdx] = exists;
+        if (created) {
+            numCreated.incrementAndGet();
+        }
+        if (verbose && (created || !exists)) {
+            final var dirPathRelative = rootDir.relativize(dirPaths[dirIdx]).toString() + "/";
+            if (created) {
+                System.out.println("      Creating: " + dirPathRelative);
+            } else if (Files.exists(dirPaths[dirIdx], LinkOption.NOFOLLOW_LINKS)) {
+                // Can't overwrite a file (or symbolic link) with a directory
+                System.out.println("Already exists: " + dirPathRelative);
+            } else {
+                System.out.println(" Cannot create: " + dirPathRelative);
+            }
+        }
+    }
+
+    /**
+     * Get the directory that an entry is extracted into, or return null if the path of the entry is not valid, or
+     * the directory could not be created.
+     */
+    Path getEntryDir(final int entryIdx) {
+        final var dirIdx = entryDirIdxs[entryIdx];
+        return dirIdx >= 0 && dirExists[dirIdx] ? dirPaths[dirIdx] : null;
+    }
+
+    /** The number of entries of the zipfile. */
+    int getNumEntries() {
+        return entryDirIdxs.length;
+    }
+
+    /** The number of directories, including the root directory. */
+    int getNumDirs() {
+        return dirPaths.length;
+    }
+
+    /** The index of the directory that an entry is extracted into, or -1 if the path of the entry is not valid. */
+    int getEntryDirIdx(final int entryIdx) {
+        return entryDirIdxs[entryIdx];
+    }
+
+    /** The index of the parent directory of a directory, or -1 for the root directory. */
+    int getParentDirIdx(final int dirIdx) {
+        return parentDirIdxs[dirIdx];
+    }
+
+    /** The path of a directory. */
+    Path getDirPath(final int dirIdx) {
+        return dirPaths[dirIdx];
+    }
+
+    /**
+     * The number of users of a directory: the number of file entries extracted into it, plus the number of its
+     * subdirectories.
+     */
+    int getNumUsers(final int dirIdx) {
+        return numUsers[dirIdx];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Created %d of %d directories, %d levels deep, in %.1f ms", numCreated.get(),
+                dirPaths.length - 1, maxDepth, createNanos / 1e6);
+    }
+}
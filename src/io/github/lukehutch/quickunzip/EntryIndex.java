@@ -0,0 +1,229 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A random-access index for a deflated zip entry: a list of checkpoints, each at a block boundary of the DEFLATE
+ * stream, recording the offset within the uncompressed data, the bit offset within the compressed data, and the
+ * 32kB of uncompressed data preceding the checkpoint (the window), which is all that is needed to resume
+ * decompression at the checkpoint (as in zlib's zran.c example). Checkpoints are spaced at least a given number of
+ * uncompressed bytes apart, so reading a range of an entry requires decompressing at most about that many bytes
+ * before the start of the range. See {@link ConcurrentZipReader#buildIndex(int, long)} and
+ * {@link ConcurrentZipReader#readRange(int, EntryIndex, long, byte[], int, int)}.
+ *
+ * <p>
+ * Indexes can be saved to and loaded from a sidecar file, in which the windows are stored compressed. An index
+ * records the position, sizes and CRC32 of the entry it was built for, so that a stale index is not used.
+ */
+public class EntryIndex {
+    private final int entryIdx;
+    private final long dataPos;
+    private final long compressedSize;
+    private final long uncompressedSize;
+    private final int crc;
+    private final long spacing;
+
+    /** The offset within the uncompressed data of each checkpoint, in increasing order. */
+    private final long[] outputPos;
+
+    /** The bit offset within the compressed data of each checkpoint. */
+    private final long[] bitPos;
+
+    /** The window preceding each checkpoint. */
+    private final byte[][] windows;
+
+    private static final int SIDECAR_MAGIC = 0x51555a49;
+    private static final int SIDECAR_VERSION = 1;
+
+    /** The default extension of a sidecar file, added to the name of the zipfile. */
+    public static final String SIDECAR_EXTENSION = ".qzidx";
+
+    EntryIndex(final int entryIdx, final long dataPos, final long compressedSize, final long uncompressedSize,
+            final int crc, final long spacing, final long[] outputPos, final long[] bitPos, final byte[][] windows) {
+        this.entryIdx = entryIdx;
+        this.dataPos = dataPos;
+        this.compressedSize = compressedSize;
+        this.uncompressedSize = uncompressedSize;
+        this.crc = crc;
+        this.spacing = spacing;
+        this.outputPos = outputPos;
+        this.bitPos = bitPos;
+        this.windows = windows;
+    }
+
+    /** The index of the entry in the central directory. */
+    public int getEntryIdx() {
+        return entryIdx;
+    }
+
+    /** The minimum number of uncompressed bytes between checkpoints. */
+    public long getSpacing() {
+        return spacing;
+    }
+
+    /** The number of checkpoints (not counting the start of the entry). */
+    public int getNumCheckpoints() {
+        return outputPos.length;
+    }
+
+    /** Returns true if this index was built for the entry with the given properties. */
+    boolean matches(final int entryIdx, final long dataPos, final long compressedSize, final long uncompressedSize,
+            final int crc) {
+        return this.entryIdx == entryIdx && this.dataPos == dataPos && this.compressedSize == compressedSize
+                && this.uncompressedSize == uncompressedSize && this.crc == crc;
+    }
+
+    /** The index of the last checkpoint at or before the given uncompressed offset, or -1 if there is none. */
+    int findCheckpoint(final long offset) {
+        final var i = Arrays.binarySearch(outputPos, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /** The offset within the uncompressed data of a checkpoint. */
+    long getOutputPos(final int checkpointIdx) {
+        return outputPos[checkpointIdx];
+    }
+
+    /** The bit offset within the compressed data of a checkpoint. */
+    long getBitPos(final int checkpointIdx) {
+        return bitPos[checkpointIdx];
+    }
+
+    /** The window preceding a checkpoint. */
+    byte[] getWindow(final int checkpointIdx) {
+        return windows[checkpointIdx];
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * The default sidecar file path for the indexes of entries of a zipfile: the zipfile path, plus
+     * {@value #SIDECAR_EXTENSION}.
+     */
+    public static Path getSidecarPath(final Path zipfilePath) {
+        return zipfilePath.resolveSibling(zipfilePath.getFileName() + SIDECAR_EXTENSION);
+    }
+
+    /** Write indexes to a sidecar file, replacing the file if it exists. */
+    public static void writeSidecar(final Path sidecarPath, final Collection<EntryIndex> indexes)
+            throws IOException {
+        final var deflater = new Deflater(Deflater.BEST_SPEED, /* nowrap = */ true);
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(sidecarPath)))) {
+            out.writeInt(SIDECAR_MAGIC);
+            out.writeInt(SIDECAR_VERSION);
+            out.writeInt(indexes.size());
+            final var buf = new byte[FastInflater.WINDOW_SIZE + 1024];
+            for (final var index : indexes) {
+                out.writeInt(index.entryIdx);
+                out.writeLong(index.dataPos);
+                out.writeLong(index.compressedSize);
+                out.writeLong(index.uncompressedSize);
+                out.writeInt(index.crc);
+                out.writeLong(index.spacing);
+                out.writeInt(index.outputPos.length);
+                for (int i = 0; i < index.outputPos.length; i++) {
+                    out.writeLong(index.outputPos[i]);
+                    out.writeLong(index.bitPos[i]);
+                    final var window = index.windows[i];
+                    deflater.reset();
+                    deflater.setInput(window);
+                    deflater.finish();
+                    // The buffer is larger than the deflated size of any window
+                    final var compressedLen = deflater.deflate(buf);
+                    out.writeInt(window.length);
+                    out.writeInt(compressedLen);
+                    out.write(buf, 0, compressedLen);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Read the indexes in a sidecar file. */
+    public static List<EntryIndex> readSidecar(final Path sidecarPath) throws IOException {
+        final var inflater = new Inflater(/* nowrap = */ true);
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecarPath)))) {
+            if (in.readInt() != SIDECAR_MAGIC || in.readInt() != SIDECAR_VERSION) {
+                throw new IOException("Not a zip index sidecar file: " + sidecarPath);
+            }
+            final var numIndexes = in.readInt();
+            final var indexes = new ArrayList<EntryIndex>();
+            final var buf = new byte[FastInflater.WINDOW_SIZE + 1024];
+            for (int i = 0; i < numIndexes; i++) {
+                final var entryIdx = in.readInt();
+                final var dataPos = in.readLong();
+                final var compressedSize = in.readLong();
+                final var uncompressedSize = in.readLong();
+                final var crc = in.readInt();
+                final var spacing = in.readLong();
+                final var numCheckpoints = in.readInt();
+                if (numCheckpoints < 0) {
+                    throw new IOException("Invalid zip index sidecar file: " + sidecarPath);
+                }
+                final var outputPos = new long[numCheckpoints];
+                final var bitPos = new long[numCheckpoints];
+                final var windows = new byte[numCheckpoints][];
+                for (int j = 0; j < numCheckpoints; j++) {
+                    outputPos[j] = in.readLong();
+                    bitPos[j] = in.readLong();
+                    final var windowLen = in.readInt();
+                    final var compressedLen = in.readInt();
+                    if (windowLen < 0 || windowLen > FastInflater.WINDOW_SIZE || compressedLen < 0
+                            || compressedLen > buf.length) {
+                        throw new IOException("Invalid zip index sidecar file: " + sidecarPath);
+                    }
+                    in.readFully(buf, 0, compressedLen);
+                    windows[j] = new byte[windowLen];
+                    inflater.reset();
+                    inflater.setInput(buf, 0, compressedLen);
+                    try {
+                        if (inflater.inflate(windows[j]) != windowLen) {
+                            throw new IOException("Invalid zip index sidecar file: " + sidecarPath);
+                        }
+                    } catch (final DataFormatException e) {
+                        throw new IOException("Invalid zip index sidecar file: " + sidecarPath);
+                    }
+                }
+                indexes.add(new EntryIndex(entryIdx, dataPos, compressedSize, uncompressedSize, crc, spacing,
+                        outputPos, bitPos, windows));
+            }
+            return indexes;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * A pure-Java decoder for raw DEFLATE streams (RFC 1951), tuned for throughput, which can be used instead of
+ * {@link java.util.zip.Inflater} to avoid a JNI transition for every buffer of input or output.
+ *
+ * <p>
+ * The whole compressed stream must be supplied up front (typically as slices of the memory-mapped zipfile). The
+ * decoder keeps up to 64 bits of input in a bit buffer, refilled 8 bytes at a time with a single unaligned read,
+ * and decodes Huffman codes with table lookups (see {@link DeflateDecoder}). Matches at least 8 bytes back are
+ * copied 8 bytes at a time.
+ *
+ * <p>
+ * Decompressed data is produced into an internal buffer that also holds the 32kB sliding window, and is copied
+ * out by {@link #inflate(ByteBuffer)}. An instance is not thread-safe, but can be reused for any number of
+ * streams by calling {@link #reset()}.
+ */
+class FastInflater extends DeflateDecoder {
+    /** The maximum number of bytes of output produced per call to the decoder, beyond the window. */
+    private static final int OUTPUT_CHUNK_SIZE = 256 * 1024;
+
+    /** The longest match, plus slack for 8-byte match copies that overrun the end of the match. */
+    private static final int OUTPUT_SLACK = 258 + 16;
+
+    /** View of a byte array as little-endian longs, for 8-byte match copies. */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    /** Output buffer, which holds the sliding window, followed by output not yet returned by inflate(). */
+    private final byte[] out = new byte[WINDOW_SIZE + OUTPUT_CHUNK_SIZE + OUTPUT_SLACK];
+    private int outStart;
+    private long totalOut;
+
+    /** Create a FastInflater. */
+    FastInflater() {
+        outLimit = WINDOW_SIZE + OUTPUT_CHUNK_SIZE;
+        reset();
+    }
+
+    /** Reset the decoder to start decoding a new stream. */
+    void reset() {
+        resetDecoder();
+        outStart = outPos = 0;
+        totalOut = 0;
+    }
+
+    /**
+     * Set the window (up to 32kB of output preceding the current position of the stream), to resume decoding in
+     * the middle of a stream. Must be called after {@link #reset()}, and before decoding starts.
+     */
+    void setWindow(final byte[] window) {
+        final var len = Math.min(WINDOW_SIZE, window.length);
+        System.arraycopy(window, window.length - len, out, 0, len);
+        outStart = outPos = len;
+    }
+
+    /** Get a copy of the window (up to 32kB of the most recent output, including any window that was set). */
+    byte[] getWindow() {
+        return Arrays.copyOfRange(out, Math.max(0, outPos - WINDOW_SIZE), outPos);
+    }
+
+    /** Returns true once the end of the final block has been reached, and all output has been returned. */
+    boolean finished() {
+        return state == STATE_DONE && outStart == outPos;
+    }
+
+    /** The total number of bytes of output produced so far. */
+    long getTotalOut() {
+        return totalOut;
+    }
+
+    /**
+     * Decompress into the remaining space of the destination buffer.
+     *
+     * @return the number of bytes decompressed, or 0 if the end of the stream has been reached, or decoding has
+     *         stopped at the stop bit position (or dst is full).
+     * @throws DataFormatException
+     *             if the input is not a valid DEFLATE stream, or is truncated.
+     */
+    int inflate(final ByteBuffer dst) throws IOException, DataFormatException {
+        if (outStart == outPos) {
+            if (isDecodingDone()) {
+                return 0;
+            }
+            decode();
+        }
+        final var n = Math.min(outPos - outStart, dst.remaining());
+        dst.put(out, outStart, n);
+        outStart += n;
+        return n;
+    }
+
+    /** Decode until the output chunk is full or the stream ends. */
+    private void decode() throws IOException, DataFormatException {
+        if (outPos >= outLimit) {
+            // All output has been returned -- slide the window back to the start of the buffer
+            System.arraycopy(out, outPos - WINDOW_SIZE, out, 0, WINDOW_SIZE);
+            outStart = outPos = WINDOW_SIZE;
+        }
+        final var startPos = outPos;
+        decodeBlocks();
+        totalOut += outPos - startPos;
+    }
+
+    @Override
+    void copyStored() throws IOException, DataFormatException {
+        outPos += readStored(out, outPos, outLimit - outPos);
+    }
+
+    @Override
+    void decodeHuffman() throws IOException, DataFormatException {
+        final var out = this.out;
+        final var litlenTable = this.litlenTable;
+        final var distTable = this.distTable;
+        var in = this.in;
+        var inEnd = this.inEnd;
+        final var litlenMask = (1 << LITLEN_TABLE_BITS) - 1;
+        final var distMask = (1 << DIST_TABLE_BITS) - 1;
+        final var outLimit = this.outLimit;
+        var bitBuf = this.bitBuf;
+        var bitCount = this.bitCount;
+        var inPos = this.inPos;
+        var outPos = this.outPos;
+        while (outPos < outLimit) {
+            // A length/distance pair needs at most 15 + 5 + 15 + 13 = 48 bits
+            if (bitCount < 48) {
+                if (inEnd - inPos >= 8) {
+                    bitBuf |= in.getLong(inPos) << bitCount;
+                    inPos += (63 - bitCount) >>> 3;
+                    bitCount |= 56;
+                } else {
+                    // Near the end of the input slice
+                    this.bitBuf = bitBuf;
+                    this.bitCount = bitCount;
+                    this.inPos = inPos;
+                    refillSlow();
+                    bitBuf = this.bitBuf;
+                    bitCount = this.bitCount;
+                    in = this.in;
+                    inPos = this.inPos;
+                    inEnd = this.inEnd;
+                }
+            }
+            var entry = litlenTable[(int) bitBuf & litlenMask];
+            if ((entry & F_LITERAL_PAIR) != 0) {
+                final var codeLen = entry & 0xf;
+                bitBuf >>>= codeLen;
+                bitCount -= codeLen;
+                out[outPos] = (byte) (entry >>> VALUE_SHIFT);
+                out[outPos + 1] = (byte) (entry >>> (VALUE_SHIFT + 8));
+                outPos += 2;
+                continue;
+            }
+            if ((entry & F_SUBTABLE) != 0) {
+                bitBuf >>>= LITLEN_TABLE_BITS;
+                bitCount -= LITLEN_TABLE_BITS;
+                entry = litlenTable[(entry >>> VALUE_SHIFT)
+                        + ((int) bitBuf & ((1 << ((entry >>> 4) & 0xf)) - 1))];
+            }
+            final var codeLen = entry & 0xf;
+            bitBuf >>>= codeLen;
+            bitCount -= codeLen;
+            if ((entry & F_LITERAL) != 0) {
+                out[outPos++] = (byte) (entry >>> VALUE_SHIFT);
+                continue;
+            }
+            if ((entry & F_BASE) == 0) {
+                if ((entry & F_END_OF_BLOCK) != 0) {
+                    this.bitBuf = bitBuf;
+                    this.bitCount = bitCount;
+                    this.inPos = inPos;
+                    this.outPos = outPos;
+                    endBlock();
+                    return;
+                }
+                throw new DataFormatException("Invalid literal/length code");
+            }
+            final var lenExtraBits = (entry >>> 4) & 0xf;
+            final var len = (entry >>> VALUE_SHIFT) + ((int) bitBuf & ((1 << lenExtraBits) - 1));
+            bitBuf >>>= lenExtraBits;
+            bitCount -= lenExtraBits;
+
+            var distEntry = distTable[(int) bitBuf & distMask];
+            if ((distEntry & F_SUBTABLE) != 0) {
+                bitBuf >>>= DIST_TABLE_BITS;
+                bitCount -= DIST_TABLE_BITS;
+                distEntry = distTable[(distEntry >>> VALUE_SHIFT)
+                        + ((int) bitBuf & ((1 << ((distEntry >>> 4) & 0xf)) - 1))];
+            }
+            if ((distEntry & F_BASE) == 0) {
+                throw new DataFormatException("Invalid distance code");
+            }
+            final var distCodeLen = distEntry & 0xf;
+            bitBuf >>>= distCodeLen;
+            bitCount -= distCodeLen;
+            final var distExtraBits = (distEntry >>> 4) & 0xf;
+            final var dist = (distEntry >>> VALUE_SHIFT) + ((int) bitBuf & ((1 << distExtraBits) - 1));
+            bitBuf >>>= distExtraBits;
+            bitCount -= distExtraBits;
+            if (dist > outPos) {
+                throw new DataFormatException("Invalid distance too far back");
+            }
+
+            // Copy the match
+            final var src = outPos - dist;
+            if (dist >= 8) {
+                // Source and destination may overlap, but each 8-byte read is complete before it is written
+                for (int i = 0; i < len; i += 8) {
+                    LONGS.set(out, outPos + i, (long) LONGS.get(out, src + i));
+                }
+            } else if (dist == 1) {
+                Arrays.fill(out, outPos, outPos + len, out[src]);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    out[outPos + i] = out[src + i];
+                }
+            }
+            outPos += len;
+        }
+        this.bitBuf = bitBuf;
+        this.bitCount = bitCount;
+        this.inPos = inPos;
+        this.outPos = outPos;
+    }
+}
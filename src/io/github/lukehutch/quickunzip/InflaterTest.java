@@ -0,0 +1,655 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Differential tests of the DEFLATE decoders against {@link Inflater}: for every stream, each decoder must produce
+ * exactly the bytes that Inflater produces, or must reject the stream if Inflater rejects it (because it is
+ * corrupt, or truncated).
+ *
+ * <p>
+ * {@link FastInflater} is tested on random streams, compressed with every level and strategy of {@link Deflater},
+ * and on truncated and corrupted copies of them. Then every entry of each zipfile is extracted in each of the ways
+ * that {@link ConcurrentZipReader} supports, including {@link ConcurrentZipReader#readRange} from the checkpoints
+ * of an index and {@link ConcurrentZipReader#inflateParallel}, both as it is and with some of its compressed data
+ * corrupted. The zipfiles are given on the command line, or if none are given, a synthetic zipfile is generated in
+ * a temporary directory. Exits with status 1 if any check fails.
+ */
+public class InflaterTest {
+    /** The uncompressed sizes of the random streams. */
+    private static final int[] STREAM_SIZES = { 0, 1, 1000, 100_000, 300_000 };
+
+    /** The kinds of data that the random streams are compressed from. */
+    private static final String[] DATA_KINDS = { "random", "text", "runs", "mixed" };
+
+    private static final int[] STRATEGIES = { Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY };
+
+    private static final String[] STRATEGY_NAMES = { "default", "filtered", "huffman-only" };
+
+    /** The number of truncated and of corrupted copies that are tested of each random stream. */
+    private static final int DAMAGED_COPIES = 4;
+
+    /** The spacing of the checkpoints of the index built for each deflated entry. */
+    private static final long INDEX_SPACING = 256 * 1024;
+
+    /** The number of threads that entries are decompressed with by inflateParallel. */
+    private static final int PARALLELISM = 4;
+
+    private final Random random = new Random(1);
+    private final FastInflater fastInflater = new FastInflater();
+    private int numChecks;
+    private int numFailures;
+
+    /** Count a check, and print the description of the check if it failed. */
+    private void check(final boolean passed, final String description) {
+        numChecks++;
+        if (!passed) {
+            numFailures++;
+            System.out.println("FAILED: " + description);
+        }
+    }
+
+    /** Check that the output of a decoder matches the output of Inflater (null if the stream was rejected). */
+    private void checkSame(final byte[] expected, final byte[] actual, final String description) {
+        if (expected == null) {
+            check(actual == null, description + ": accepted a stream that Inflater rejects");
+        } else if (actual == null) {
+            check(false, description + ": rejected a stream that Inflater accepts");
+        } else {
+            check(Arrays.equals(expected, actual), description + ": output differs from Inflater (" + actual.length
+                    + " bytes instead of " + expected.length + ")");
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Generate len bytes of data of the given kind (an index into {@link #DATA_KINDS}). */
+    private byte[] generateData(final int kind, final int len) {
+        final var data = new byte[len];
+        switch (kind) {
+        case 0:
+            random.nextBytes(data);
+            break;
+        case 1:
+            final var text = QuickUnzipBenchmark.randomText(random, len);
+            System.arraycopy(text, 0, data, 0, len);
+            break;
+        case 2:
+            // Runs of short repeating patterns, so that matches overlap the data they copy (at distances shorter
+            // than the 8 bytes copied at a time by FastInflater, as well as longer ones)
+            for (int pos = 0; pos < len;) {
+                final var period = 1 + random.nextInt(random.nextBoolean() ? 16 : 300);
+                final var runEnd = Math.min(len, pos + 1 + random.nextInt(5000));
+                for (int i = pos; i < runEnd; i++) {
+                    data[i] = i - pos < period ? (byte) random.nextInt(4) : data[i - period];
+                }
+                pos = runEnd;
+            }
+            break;
+        default:
+            // Segments of each of the other kinds
+            for (int pos = 0; pos < len;) {
+                final var segment = generateData(random.nextInt(3), Math.min(len - pos, 1 + random.nextInt(20_000)));
+                System.arraycopy(segment, 0, data, pos, segment.length);
+                pos += segment.length;
+            }
+            break;
+        }
+        return data;
+    }
+
+    /** Compress data as a raw DEFLATE stream. */
+    private static byte[] deflate(final byte[] data, final int level, final int strategy) {
+        final var deflater = new Deflater(level, /* nowrap = */ true);
+        try {
+            deflater.setStrategy(strategy);
+            deflater.setInput(data);
+            deflater.finish();
+            final var out = new ByteArrayOutputStream();
+            final var buf = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compress data as a raw DEFLATE stream, changing the level and strategy between segments of the data, and
+     * flushing after some segments, so that the stream mixes stored, fixed and dynamic blocks, and empty stored
+     * blocks.
+     */
+    private byte[] deflateMixed(final byte[] data) {
+        final var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap = */ true);
+        try {
+            final var out = new ByteArrayOutputStream();
+            final var buf = new byte[64 * 1024];
+            for (int pos = 0; pos < data.length;) {
+                final var segmentLen = Math.min(data.length - pos, 1 + random.nextInt(30_000));
+                deflater.setLevel(random.nextInt(10));
+                deflater.setStrategy(STRATEGIES[random.nextInt(STRATEGIES.length)]);
+                deflater.setInput(data, pos, segmentLen);
+                pos += segmentLen;
+                final var flush = random.nextInt(3) == 0 ? Deflater.SYNC_FLUSH
+                        : random.nextInt(3) == 0 ? Deflater.FULL_FLUSH : Deflater.NO_FLUSH;
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, flush);
+                    out.write(buf, 0, n);
+                } while (n == buf.length || !deflater.needsInput());
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Decompress a raw DEFLATE stream with Inflater, returning null if it is invalid or truncated. */
+    private static byte[] inflateReference(final byte[] stream) {
+        final var inflater = new Inflater(/* nowrap = */ true);
+        try {
+            inflater.setInput(stream);
+            final var out = new ByteArrayOutputStream();
+            final var buf = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                final var n = inflater.inflate(buf);
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (final DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decompress a raw DEFLATE stream with the FastInflater, into buffers of random sizes of up to maxBufSize bytes,
+     * returning null if the stream is rejected.
+     */
+    private byte[] inflateFast(final byte[] stream, final int maxBufSize) throws IOException {
+        fastInflater.reset();
+        fastInflater.setInput(ByteBuffer.wrap(stream));
+        final var out = new ByteArrayOutputStream();
+        try {
+            for (;;) {
+                final var buf = ByteBuffer.allocate(1 + random.nextInt(maxBufSize));
+                final var n = fastInflater.inflate(buf);
+                if (n == 0) {
+                    return fastInflater.finished() ? out.toByteArray() : null;
+                }
+                out.write(buf.array(), 0, n);
+            }
+        } catch (final DataFormatException e) {
+            return null;
+        }
+    }
+
+    /** Check that the FastInflater decodes a stream exactly as Inflater does. */
+    private void checkStream(final byte[] stream, final String description) throws IOException {
+        final var expected = inflateReference(stream);
+        try {
+            checkSame(expected, inflateFast(stream, 1 << random.nextInt(18)), description);
+        } catch (final RuntimeException e) {
+            check(false, description + ": " + e);
+        }
+    }
+
+    /** Check random streams, and truncated and corrupted copies of them. */
+    private void testRandomStreams() throws IOException {
+        System.out.println("Testing random streams");
+        for (int kind = 0; kind < DATA_KINDS.length; kind++) {
+            for (final var size : STREAM_SIZES) {
+                final var data = generateData(kind, size);
+                for (int level = 0; level <= 9; level++) {
+                    for (int s = 0; s < STRATEGIES.length; s++) {
+                        final var stream = deflate(data, level, STRATEGIES[s]);
+                        final var description = DATA_KINDS[kind] + " data, " + size + " bytes, level " + level
+                                + ", " + STRATEGY_NAMES[s] + " strategy";
+                        check(Arrays.equals(inflateReference(stream), data), description + ": Inflater failed");
+                        checkStream(stream, description);
+                        checkDamagedStreams(stream, description);
+                    }
+                }
+                final var stream = deflateMixed(data);
+                final var description = DATA_KINDS[kind] + " data, " + size + " bytes, mixed levels and flushes";
+                check(Arrays.equals(inflateReference(stream), data), description + ": Inflater failed");
+                checkStream(stream, description);
+                checkDamagedStreams(stream, description);
+            }
+        }
+    }
+
+    /** Check truncated and corrupted copies of a stream. */
+    private void checkDamagedStreams(final byte[] stream, final String description) throws IOException {
+        for (int i = 0; i < DAMAGED_COPIES; i++) {
+            final var len = i == 0 ? stream.length - 1 : random.nextInt(Math.max(1, stream.length));
+            if (len >= 0) {
+                checkStream(Arrays.copyOf(stream, len), description + ", truncated to " + len + " bytes");
+            }
+        }
+        for (int i = 0; i < DAMAGED_COPIES && stream.length > 0; i++) {
+            final var corrupted = stream.clone();
+            final var pos = random.nextInt(corrupted.length);
+            if (i % 2 == 0) {
+                corrupted[pos] ^= 1 << random.nextInt(8);
+            } else {
+                corrupted[pos] = (byte) random.nextInt(256);
+            }
+            checkStream(corrupted, description + ", corrupted at byte " + pos);
+        }
+    }
+
+    /** Writes a raw DEFLATE stream bit by bit, for handcrafted streams. */
+    private static class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int bitBuf;
+        private int bitCount;
+
+        /** Write the low n bits of value, least significant bit first. */
+        BitWriter bits(final int value, final int n) {
+            for (int i = 0; i < n; i++) {
+                bitBuf |= (value >>> i & 1) << bitCount;
+                if (++bitCount == 8) {
+                    out.write(bitBuf);
+                    bitBuf = bitCount = 0;
+                }
+            }
+            return this;
+        }
+
+        /** Write an n-bit Huffman code, most significant bit first. */
+        BitWriter code(final int code, final int n) {
+            return bits(Integer.reverse(code) >>> (32 - n), n);
+        }
+
+        /** Write a literal/length symbol of the fixed Huffman code (RFC 1951, section 3.2.6). */
+        BitWriter fixedSymbol(final int sym) {
+            return sym < 144 ? code(0x30 + sym, 8)
+                    : sym < 256 ? code(0x190 + sym - 144, 9)
+                            : sym < 280 ? code(sym - 256, 7) : code(0xc0 + sym - 280, 8);
+        }
+
+        byte[] toByteArray() {
+            if (bitCount > 0) {
+                out.write(bitBuf);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /** Check handcrafted streams, which must be rejected unless noted. */
+    private void testHandcraftedStreams() throws IOException {
+        System.out.println("Testing handcrafted streams");
+        final var streams = new ArrayList<byte[]>();
+        final var descriptions = new ArrayList<String>();
+        // An empty final stored block (valid)
+        streams.add(new byte[] { 0x01, 0x00, 0x00, (byte) 0xff, (byte) 0xff });
+        descriptions.add("empty stored block");
+        // The reserved block type
+        streams.add(new BitWriter().bits(1, 1).bits(3, 2).toByteArray());
+        descriptions.add("reserved block type");
+        // A stored block whose length does not match its complement
+        streams.add(new byte[] { 0x01, 0x05, 0x00, 0x00, 0x00, 1, 2, 3, 4, 5 });
+        descriptions.add("stored block length mismatch");
+        // A stored block that is longer than the stream
+        streams.add(new byte[] { 0x01, 0x05, 0x00, (byte) 0xfa, (byte) 0xff, 1, 2, 3 });
+        descriptions.add("stored block past the end of the stream");
+        // A fixed block with a literal, a match of length 3 at distance 1, and an end of block (valid)
+        streams.add(new BitWriter().bits(1, 1).bits(1, 2).fixedSymbol('a').fixedSymbol(257).code(0, 5)
+                .fixedSymbol(256).toByteArray());
+        descriptions.add("fixed block with a match");
+        // A match reaching back before the start of the stream
+        streams.add(new BitWriter().bits(1, 1).bits(1, 2).fixedSymbol('a').fixedSymbol(257).code(1, 5)
+                .fixedSymbol(256).toByteArray());
+        descriptions.add("distance too far back");
+        // The invalid distance symbols 30 and 31, and the invalid length symbols 286 and 287
+        for (final var distSym : new int[] { 30, 31 }) {
+            streams.add(new BitWriter().bits(1, 1).bits(1, 2).fixedSymbol('a').fixedSymbol(257).code(distSym, 5)
+                    .fixedSymbol(256).toByteArray());
+            descriptions.add("invalid distance symbol " + distSym);
+        }
+        for (final var lenSym : new int[] { 286, 287 }) {
+            streams.add(new BitWriter().bits(1, 1).bits(1, 2).fixedSymbol('a').fixedSymbol(lenSym).code(0, 5)
+                    .fixedSymbol(256).toByteArray());
+            descriptions.add("invalid length symbol " + lenSym);
+        }
+        // A dynamic block whose code length code is incomplete (only one code of length 1)
+        streams.add(new BitWriter().bits(1, 1).bits(2, 2).bits(0, 5).bits(0, 5).bits(0, 4).bits(1, 3).bits(0, 3)
+                .bits(0, 3).bits(0, 3).toByteArray());
+        descriptions.add("incomplete code length code");
+        // A non-final block followed by the end of the stream
+        streams.add(new BitWriter().bits(0, 1).bits(1, 2).fixedSymbol('a').fixedSymbol(256).toByteArray());
+        descriptions.add("missing final block");
+        for (int i = 0; i < streams.size(); i++) {
+            checkStream(streams.get(i), descriptions.get(i));
+            final var valid = i == 0 || i == 4;
+            check(valid == (inflateReference(streams.get(i)) != null),
+                    descriptions.get(i) + ": Inflater " + (valid ? "rejected" : "accepted") + " the stream");
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Write a zipfile of stored and deflated entries of various sizes and kinds of data, including entries large
+     * enough to be decompressed in parallel chunks by {@link ConcurrentZipReader#inflateParallel}.
+     */
+    private void writeZipfile(final Path zipfilePath) throws IOException {
+        final var sizes = new int[] { 0, 1, 100, 5000, 70_000, 1_000_000, 3_000_000, 24_000_000 };
+        try (var zipOut = new ZipOutputStream(Files.newOutputStream(zipfilePath))) {
+            var entryNum = 0;
+            for (final var size : sizes) {
+                for (int kind = 0; kind < DATA_KINDS.length; kind++) {
+                    final var data = generateData(kind, size);
+                    final var stored = size <= 3_000_000 && entryNum % 5 == 0;
+                    final var entry = new ZipEntry("entry" + entryNum++ + "-" + DATA_KINDS[kind] + "-" + size
+                            + (stored ? ".stored" : ".deflated"));
+                    if (stored) {
+                        final var crc = new CRC32();
+                        crc.update(data);
+                        entry.setMethod(ZipEntry.STORED);
+                        entry.setSize(size);
+                        entry.setCompressedSize(size);
+                        entry.setCrc(crc.getValue());
+                    } else {
+                        zipOut.setLevel(random.nextInt(10));
+                    }
+                    zipOut.putNextEntry(entry);
+                    zipOut.write(data);
+                    zipOut.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy a zipfile, corrupting some bytes of the compressed data of each deflated entry of 1000 bytes or more, and
+     * return the number of entries corrupted.
+     */
+    private int writeCorruptZipfile(final Path zipfilePath, final Path corruptZipfilePath) throws IOException {
+        final var bytes = Files.readAllBytes(zipfilePath);
+        var numCorrupted = 0;
+        try (var zipReader = new ConcurrentZipReader(zipfilePath)) {
+            for (int entryIdx = 0; entryIdx < zipReader.size(); entryIdx++) {
+                final var compressedSize = zipReader.getCompressedSize(entryIdx);
+                if (zipReader.getMethod(entryIdx) == CentralDirectory.DEFLATED && compressedSize >= 1000) {
+                    final var dataPos = zipReader.getDataPos(entryIdx);
+                    for (int i = 0; i < 3; i++) {
+                        bytes[(int) (dataPos + random.nextInt((int) compressedSize))] ^= 1 << random.nextInt(8);
+                    }
+                    numCorrupted++;
+                }
+            }
+        }
+        Files.write(corruptZipfilePath, bytes);
+        return numCorrupted;
+    }
+
+    /** Read all the compressed data of an entry. */
+    private static byte[] readCompressedData(final ConcurrentZipReader zipReader, final FileChannel fileChannel,
+            final int entryIdx) throws IOException {
+        final var buf = ByteBuffer.allocate((int) zipReader.getCompressedSize(entryIdx));
+        final var dataPos = zipReader.getDataPos(entryIdx);
+        while (buf.hasRemaining()) {
+            if (fileChannel.read(buf, dataPos + buf.position()) < 0) {
+                throw new IOException("Unexpected end of zipfile");
+            }
+        }
+        return buf.array();
+    }
+
+    /** A method that extracts an entry into a byte array. */
+    private interface Extraction {
+        byte[] extract() throws IOException;
+    }
+
+    /** Run an extraction method, returning null if it rejected the entry. */
+    private byte[] run(final Extraction extraction, final String description) {
+        try {
+            return extraction.extract();
+        } catch (final IOException e) {
+            return null;
+        } catch (final RuntimeException e) {
+            check(false, description + ": " + e);
+            return null;
+        }
+    }
+
+    /** Extract an entry into a new file with the given method, and return the contents of the file. */
+    private static byte[] extractToFile(final Path tempFile, final int entryIdx, final FileExtraction extraction)
+            throws IOException {
+        Files.deleteIfExists(tempFile);
+        try (var channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final var bytesWritten = extraction.extract(entryIdx, channel);
+            if (bytesWritten != channel.size()) {
+                throw new IllegalStateException("Returned " + bytesWritten + " bytes written, but wrote "
+                        + channel.size());
+            }
+        }
+        return Files.readAllBytes(tempFile);
+    }
+
+    /** A method that extracts an entry into a file. */
+    private interface FileExtraction {
+        long extract(int entryIdx, FileChannel target) throws IOException;
+    }
+
+    /** Extract an entry to a byte array with an EntryReader. */
+    private static byte[] inflateToArray(final ConcurrentZipReader.EntryReader entryReader, final int entryIdx)
+            throws IOException {
+        final var out = new ByteArrayOutputStream();
+        final var bytesWritten = entryReader.inflateTo(entryIdx, Channels.newChannel(out));
+        if (bytesWritten != out.size()) {
+            throw new IllegalStateException("Returned " + bytesWritten + " bytes written, but wrote " + out.size());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Check every entry of a zipfile, extracted in each of the ways that {@link ConcurrentZipReader} supports,
+     * against the data inflated by Inflater.
+     */
+    private void testZipfile(final Path zipfilePath, final Path tempFile, final ExecutorService executor)
+            throws IOException {
+        System.out.println("Testing " + zipfilePath);
+        try (var zipReader = new ConcurrentZipReader(zipfilePath);
+                var fileChannel = FileChannel.open(zipfilePath);
+                var entryReader = zipReader.newEntryReader(/* pureJavaInflater = */ false);
+                var fastEntryReader = zipReader.newEntryReader(/* pureJavaInflater = */ true)) {
+            for (int entryIdx = 0; entryIdx < zipReader.size(); entryIdx++) {
+                final var name = zipReader.getName(entryIdx);
+                final var method = zipReader.getMethod(entryIdx);
+                if (zipReader.isDirectory(entryIdx)
+                        || method != CentralDirectory.STORED && method != CentralDirectory.DEFLATED) {
+                    continue;
+                }
+                final var compressedData = readCompressedData(zipReader, fileChannel, entryIdx);
+                final var deflated = method == CentralDirectory.DEFLATED;
+                final var expected = deflated ? inflateReference(compressedData) : compressedData;
+                // Methods that check the size and CRC of the entry must also reject data that Inflater accepts,
+                // but that does not match the central directory
+                var expectedChecked = expected;
+                if (expected != null) {
+                    final var crc = new CRC32();
+                    crc.update(expected);
+                    if (expected.length != zipReader.getSize(entryIdx) || crc.getValue() != zipReader.getCrc(
+                            entryIdx)) {
+                        expectedChecked = null;
+                    }
+                }
+                final var idx = entryIdx;
+                checkSame(expected, run(() -> inflateToArray(entryReader, idx), name), name + ", Inflater");
+                checkSame(expected, run(() -> inflateToArray(fastEntryReader, idx), name), name + ", FastInflater");
+                // Mapped output cannot write more than the uncompressed size of the entry
+                checkSame(expected != null && expected.length > zipReader.getSize(entryIdx) ? null : expected,
+                        run(() -> extractToFile(tempFile, idx, entryReader::inflateToMapped), name),
+                        name + ", mapped output");
+                if (expected != null && expected.length <= ConcurrentZipReader.MAX_READ_FULLY_SIZE) {
+                    checkSame(expected, run(() -> toArray(entryReader.readFully(idx)), name), name + ", readFully");
+                    checkSame(expected, run(() -> toArray(fastEntryReader.readFully(idx)), name),
+                            name + ", readFully with FastInflater");
+                }
+                // Stored entries are copied without checking their CRC
+                checkSame(deflated ? expectedChecked : expected, run(() -> extractToFile(tempFile, idx,
+                        (i, target) -> zipReader.inflateParallel(i, target, executor, PARALLELISM)), name),
+                        name + ", inflateParallel");
+                if (deflated) {
+                    checkIndex(zipReader, entryIdx, expectedChecked, name);
+                }
+            }
+        }
+    }
+
+    /** Copy the remaining bytes of a buffer to an array. */
+    private static byte[] toArray(final ByteBuffer buf) {
+        final var bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Build an index for a deflated entry, then check ranges read from the entry, starting at, before and after
+     * each checkpoint, and at random offsets, with and without the index.
+     */
+    private void checkIndex(final ConcurrentZipReader zipReader, final int entryIdx, final byte[] expected,
+            final String name) {
+        final var out = new ByteArrayOutputStream();
+        final var index = new EntryIndex[1];
+        checkSame(expected, run(() -> {
+            index[0] = zipReader.buildIndex(entryIdx, INDEX_SPACING, Channels.newChannel(out));
+            return out.toByteArray();
+        }, name), name + ", buildIndex");
+        if (expected == null || index[0] == null) {
+            return;
+        }
+        final var offsets = new ArrayList<Long>();
+        for (int i = 0; i < index[0].getNumCheckpoints(); i++) {
+            final var checkpointPos = index[0].getOutputPos(i);
+            offsets.add(checkpointPos);
+            offsets.add(Math.max(0, checkpointPos - 1 - random.nextInt(100)));
+            offsets.add(checkpointPos + 1 + random.nextInt(100));
+        }
+        for (int i = 0; i < 4; i++) {
+            offsets.add((long) random.nextInt(expected.length + 1));
+        }
+        offsets.add((long) expected.length);
+        offsets.add(expected.length + 10L);
+        for (final var offset : offsets) {
+            final var len = random.nextInt(random.nextBoolean() ? 300 : 100_000);
+            final var start = (int) Math.min(offset, expected.length);
+            final var expectedRange = Arrays.copyOfRange(expected, start,
+                    (int) Math.min(expected.length, (long) start + len));
+            final var description = name + ", readRange(" + offset + ", " + len + ")";
+            // Without the index, only short ranges near the start of large entries, to bound the time taken
+            final var entryIndexes = offset < 4 * INDEX_SPACING ? Arrays.asList(index[0], null)
+                    : List.of(index[0]);
+            for (final var entryIndex : entryIndexes) {
+                final var buf = new byte[len + 2];
+                final var bytesRead = run(() -> {
+                    final var n = zipReader.readRange(entryIdx, entryIndex, offset, buf, 1, len);
+                    return Arrays.copyOfRange(buf, 1, 1 + n);
+                }, description);
+                checkSame(expectedRange, bytesRead, description + (entryIndex == null ? " without index" : ""));
+                check(buf[0] == 0 && buf[len + 1] == 0, description + ": wrote outside the range of the buffer");
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    public static void main(final String[] args) throws IOException {
+        final var zipfiles = new ArrayList<Path>();
+        for (final var arg : args) {
+            if (arg.startsWith("-")) {
+                System.err.println("Syntax: java " + InflaterTest.class.getName() + " [zipfilename.zip ...]");
+                System.exit(1);
+            }
+            zipfiles.add(Paths.get(arg));
+        }
+        final var test = new InflaterTest();
+        final var tempDir = Files.createTempDirectory("quickunzip-test");
+        final var executor = Executors.newFixedThreadPool(PARALLELISM);
+        try {
+            test.testRandomStreams();
+            test.testHandcraftedStreams();
+            if (zipfiles.isEmpty()) {
+                final var zipfile = tempDir.resolve("test.zip");
+                System.out.println("Generating " + zipfile);
+                test.writeZipfile(zipfile);
+                final var corruptZipfile = tempDir.resolve("corrupt.zip");
+                System.out.println("Corrupted " + test.writeCorruptZipfile(zipfile, corruptZipfile) + " entries of "
+                        + corruptZipfile);
+                zipfiles.add(zipfile);
+                zipfiles.add(corruptZipfile);
+            }
+            final var tempFile = tempDir.resolve("entry");
+            for (final var zipfile : zipfiles) {
+                test.testZipfile(zipfile, tempFile, executor);
+            }
+        } finally {
+            executor.shutdown();
+            try (var paths = Files.list(tempDir)) {
+                for (final var path : (Iterable<Path>) paths::iterator) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(tempDir);
+        }
+        System.out.println(test.numChecks + " checks, " + test.numFailures + " failed");
+        if (test.numFailures > 0) {
+            System.exit(1);
+        }
+    }
+}
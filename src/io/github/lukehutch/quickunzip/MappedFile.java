@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read-only memory mapping of a whole file, which may be larger than 2GB. The file is mapped lazily in segments
+ * of {@link #SEGMENT_STRIDE} bytes, and each segment overlaps the start of the next segment by
+ * {@link #SEGMENT_OVERLAP} bytes, so that any record of up to {@link #SEGMENT_OVERLAP} bytes in length can be
+ * read from a single segment, using only absolute (thread-safe) get methods.
+ */
+class MappedFile implements AutoCloseable {
+    private final FileChannel fileChannel;
+    private final long fileLength;
+    private final AtomicReferenceArray<ByteBuffer> segments;
+
+    /** The offset between the start of one segment and the start of the next. */
+    static final int SEGMENT_STRIDE = 1 << 30;
+
+    /**
+     * The number of bytes each segment overlaps the next segment by. This is larger than the largest possible zip
+     * central directory record (46 bytes of fixed fields plus three 16-bit-length variable fields).
+     */
+    static final int SEGMENT_OVERLAP = 1 << 18;
+
+    /** Map the file open on the given channel. The channel is not closed by {@link #close()}. */
+    MappedFile(final FileChannel fileChannel) throws IOException {
+        this.fileChannel = fileChannel;
+        this.fileLength = fileChannel.size();
+        this.segments = new AtomicReferenceArray<>((int) ((fileLength + SEGMENT_STRIDE - 1) / SEGMENT_STRIDE));
+    }
+
+    /** The length of the mapped file. */
+    long length() {
+        return fileLength;
+    }
+
+    /** Get (mapping if necessary) the segment containing the given file position. */
+    private ByteBuffer segmentContaining(final long pos) throws IOException {
+        if (pos < 0 || pos >= fileLength) {
+            throw new IOException("Position out of range: " + pos);
+        }
+        final var segmentIdx = (int) (pos / SEGMENT_STRIDE);
+        var segment = segments.get(segmentIdx);
+        if (segment == null) {
+            final var segmentStart = (long) segmentIdx * SEGMENT_STRIDE;
+            final var segmentLength = (int) Math.min(fileLength - segmentStart,
+                    (long) SEGMENT_STRIDE + SEGMENT_OVERLAP);
+            final var newSegment = fileChannel.map(MapMode.READ_ONLY, segmentStart, segmentLength)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            // In case of a race condition, keep whichever mapping was stored first
+            segment = segments.compareAndSet(segmentIdx, null, newSegment) ? newSegment
+                    : segments.get(segmentIdx);
+        }
+        return segment;
+    }
+
+    /**
+     * Get a little-endian buffer (shared, so use only absolute get methods on it) that contains the range of bytes
+     * {@code [pos, pos + len)} at index {@code pos - bufferStart(pos)}, where len must not be greater than
+     * {@link #SEGMENT_OVERLAP}.
+     */
+    ByteBuffer bufferContaining(final long pos, final int len) throws IOException {
+        if (len > SEGMENT_OVERLAP || pos + len > fileLength) {
+            throw new IOException("Range out of bounds: " + pos + " + " + len);
+        }
+        return segmentContaining(pos);
+    }
+
+    /** The file position of index 0 of the buffer returned by {@link #bufferContaining(long, int)}. */
+    static long bufferStart(final long pos) {
+        return pos - pos % SEGMENT_STRIDE;
+    }
+
+    /**
+     * Get a new little-endian buffer whose contents start at file position {@code pos} and contain up to
+     * {@code maxLen} bytes. The returned buffer may be shorter than maxLen, if the range spans more than one
+     * segment, in which case the remainder of the range must be fetched by calling this method again.
+     */
+    ByteBuffer slice(final long pos, final long maxLen) throws IOException {
+        final var segment = segmentContaining(pos);
+        final var idx = (int) (pos % SEGMENT_STRIDE);
+        final var len = (int) Math.min(maxLen, segment.capacity() - idx);
+        final var dup = segment.duplicate();
+        dup.limit(idx + len).position(idx);
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Read an unsigned byte. */
+    int getUnsignedByte(final long pos) throws IOException {
+        return bufferContaining(pos, 1).get((int) (pos % SEGMENT_STRIDE)) & 0xff;
+    }
+
+    /** Read an unsigned little-endian 16-bit value. */
+    int getUnsignedShort(final long pos) throws IOException {
+        return bufferContaining(pos, 2).getShort((int) (pos % SEGMENT_STRIDE)) & 0xffff;
+    }
+
+    /** Read an unsigned little-endian 32-bit value. */
+    long getUnsignedInt(final long pos) throws IOException {
+        return bufferContaining(pos, 4).getInt((int) (pos % SEGMENT_STRIDE)) & 0xffffffffL;
+    }
+
+    /** Read a little-endian 64-bit value. */
+    long getLong(final long pos) throws IOException {
+        return bufferContaining(pos, 8).getLong((int) (pos % SEGMENT_STRIDE));
+    }
+
+    /** Read bytes into an array. */
+    void getBytes(final long pos, final byte[] dst, final int dstOff, final int len) throws IOException {
+        final var buf = bufferContaining(pos, len);
+        final var idx = (int) (pos % SEGMENT_STRIDE);
+        for (int i = 0; i < len; i++) {
+            dst[dstOff + i] = buf.get(idx + i);
+        }
+    }
+
+    /**
+     * Drop references to the mapped segments. (The mappings themselves are released when the buffers are garbage
+     * collected.)
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < segments.length(); i++) {
+            segments.set(i, null);
+        }
+    }
+}
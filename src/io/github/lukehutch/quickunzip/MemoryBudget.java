@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A limit on the number of bytes of decompressed data held in memory at once, across all threads. Like a
+ * semaphore counted in bytes, a thread acquires bytes before filling a buffer, blocking while the limit would be
+ * exceeded, and releases them once the buffer has been written. The peak number of bytes in flight, and the time
+ * threads spent blocked, are recorded.
+ *
+ * <p>
+ * A request for more bytes than the whole budget is granted once nothing else is in flight, so that it cannot
+ * block forever.
+ */
+class MemoryBudget {
+    private final long limit;
+    private long bytesInFlight;
+    private long peakBytesInFlight;
+    private long numBlocked;
+    private long blockedNanos;
+
+    /** Limit the bytes in flight to the given number, or leave them unlimited, if limit is 0 or less. */
+    MemoryBudget(final long limit) {
+        this.limit = limit > 0 ? limit : Long.MAX_VALUE;
+    }
+
+    /** The number of bytes that can be in flight, or {@link Long#MAX_VALUE} if unlimited. */
+    long getLimit() {
+        return limit;
+    }
+
+    /** Acquire the given number of bytes, blocking until they are within the budget. */
+    synchronized void acquire(final long bytes) throws InterruptedIOException {
+        if (bytesInFlight > 0 && bytesInFlight + bytes > limit) {
+            final var startTime = System.nanoTime();
+            numBlocked++;
+            try {
+                while (bytesInFlight > 0 && bytesInFlight + bytes > limit) {
+                    wait();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memory");
+            } finally {
+                blockedNanos += System.nanoTime() - startTime;
+            }
+        }
+        charge(bytes);
+    }
+
+    /**
+     * Charge bytes that are already in use (e.g. because a buffer grew past its estimated size) to the budget,
+     * without blocking. They must be released like acquired bytes.
+     */
+    synchronized void charge(final long bytes) {
+        bytesInFlight += bytes;
+        peakBytesInFlight = Math.max(peakBytesInFlight, bytesInFlight);
+    }
+
+    /** Release bytes that were acquired or charged. */
+    synchronized void release(final long bytes) {
+        bytesInFlight -= bytes;
+        notifyAll();
+    }
+
+    /** The peak number of bytes in flight. */
+    synchronized long getPeakBytesInFlight() {
+        return peakBytesInFlight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Memory: peak %.1f MB of decompressed data in flight (%s); "
+                + "blocked %d times, for %.1f ms", peakBytesInFlight / 1e6,
+                limit == Long.MAX_VALUE ? "unlimited" : String.format("budget %.1f MB", limit / 1e6), numBlocked,
+                blockedNanos / 1e6);
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.ZipException;
+
+import io.github.lukehutch.quickunzip.Utils.IndexedTask;
+
+/**
+ * Decompresses a single large DEFLATE stream on several threads, using the approach of pugz (Kerbiriou and
+ * Chikhi, "Parallel decompression of gzip-compressed files and random access to DNA sequences", 2019).
+ *
+ * <p>
+ * The compressed stream is split into chunks of roughly equal size. For each chunk after the first, the first
+ * position at or after the start of the chunk where a valid dynamic block header can be read is found by
+ * searching bit by bit, and the chunk is decoded from there without knowing the preceding 32kB of output (the
+ * window), producing back-references into the window as markers (see {@link SpeculativeInflater}). Each chunk is
+ * decoded up to the first block header at or after the start of the next chunk, so that if the boundary found
+ * for the next chunk was a real block boundary, the chunks line up exactly.
+ *
+ * <p>
+ * Then the chunks are stitched together in order: the window of each chunk is resolved from the end of the
+ * previous chunk, and any chunk whose start does not line up with the end of the previous chunk (because the
+ * boundary found was a false positive, or a real boundary was skipped) is decoded again from the end of the
+ * previous chunk, using the now-known window. Finally the markers in each chunk are replaced with window bytes,
+ * and the chunks are written to their positions in the output file, in parallel. The CRC32 of each chunk is
+ * computed as it is written, and the chunk CRCs are combined and checked against the CRC of the entry.
+ *
+ * <p>
+ * Chunks are processed in rounds of one chunk per thread, to bound memory use. The output buffers of the chunks
+ * of each round are charged to the memory budget, reserving an estimate of their size before decoding (so that
+ * the round waits while other threads hold too much of the budget), and charging any excess once decoded. If the
+ * budget cannot hold one chunk per thread, fewer chunks are decoded per round.
+ */
+class ParallelInflater {
+    private final MappedFile mappedFile;
+    private final long streamPos;
+    private final long streamLen;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final long chunkSize;
+    private final int numChunks;
+    private final MemoryBudget memoryBudget;
+    private final LongAdder bytesWritten;
+
+    /** The chunk decoders that are not in use. */
+    private final ConcurrentLinkedQueue<SpeculativeInflater> freeDecoders = new ConcurrentLinkedQueue<>();
+
+    /** The minimum compressed size of a chunk. */
+    static final long MIN_CHUNK_SIZE = 1L << 20;
+
+    /** The desired uncompressed size of a chunk. */
+    private static final long TARGET_CHUNK_OUTPUT_SIZE = 8L << 20;
+
+    /**
+     * The maximum uncompressed size of a chunk (each decoder uses two bytes of memory per byte of output). If any
+     * chunk is larger, the stream is decompressed sequentially instead.
+     */
+    private static final int MAX_CHUNK_OUTPUT_SIZE = 64 << 20;
+
+    /**
+     * How far into a chunk to search for a block boundary. Deflaters emit a new block at least every few tens of
+     * kB of compressed data, unless the data is incompressible (in which case stored blocks are emitted, which
+     * cannot be found by searching, and there is little to gain from parallel decompression).
+     */
+    private static final long MAX_BOUNDARY_SEARCH_LEN = 256 * 1024;
+
+    /**
+     * The estimated memory used by the decoder of a chunk: two bytes per symbol of output, and up to twice the
+     * desired output size, since the output buffer grows by doubling.
+     */
+    private static final long CHUNK_MEMORY_ESTIMATE = 2 * 2 * TARGET_CHUNK_OUTPUT_SIZE;
+
+    /** The size of the buffer used to resolve and write chunk output. */
+    private static final int WRITE_BUF_SIZE = 256 * 1024;
+
+    /** The state of a chunk. */
+    private static class Chunk {
+        /** The decoder holding the output of the chunk, or null if the chunk could not be decoded speculatively. */
+        SpeculativeInflater decoder;
+
+        /** The bit position that decoding started at. */
+        long startBit;
+
+        /** The window preceding the chunk, once known. */
+        byte[] window;
+
+        /** The position of the chunk's output within the uncompressed stream. */
+        long outputPos;
+
+        /** The CRC32 of the chunk's output. */
+        int crc;
+    }
+
+    /**
+     * Prepare to decompress the DEFLATE stream in the range {@code [streamPos, streamPos + streamLen)} of the
+     * mapped file, whose uncompressed size is expected to be uncompressedSize. The memory used by chunk output
+     * is charged to memoryBudget, if not null, and bytes are added to bytesWritten, if not null, as they are
+     * written.
+     */
+    ParallelInflater(final MappedFile mappedFile, final long streamPos, final long streamLen,
+            final long uncompressedSize, final ExecutorService executor, final int parallelism,
+            final MemoryBudget memoryBudget, final LongAdder bytesWritten) {
+        this.mappedFile = mappedFile;
+        this.bytesWritten = bytesWritten;
+        this.memoryBudget = memoryBudget != null ? memoryBudget : new MemoryBudget(0);
+        this.streamPos = streamPos;
+        this.streamLen = streamLen;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        // Size chunks by the compression ratio, so that each chunk has about the same amount of output
+        final var ratio = uncompressedSize > 0 ? Math.max(1.0, (double) uncompressedSize / streamLen) : 1.0;
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, (long) (TARGET_CHUNK_OUTPUT_SIZE / ratio));
+        this.numChunks = (int) Math.min(Integer.MAX_VALUE - 8, (streamLen + chunkSize - 1) / chunkSize);
+    }
+
+    /** Returns true if the memory budget can hold the output of at least one chunk. */
+    boolean fitsMemoryBudget() {
+        return memoryBudget.getLimit() >= CHUNK_MEMORY_ESTIMATE;
+    }
+
+    /** The number of chunks the stream is split into. (Parallel decompression requires at least two.) */
+    int getNumChunks() {
+        return numChunks;
+    }
+
+    /** The bit position of the nominal start of a chunk. */
+    private long chunkStartBit(final int chunkIdx) {
+        return chunkIdx >= numChunks ? Long.MAX_VALUE : chunkIdx * chunkSize * 8;
+    }
+
+    /**
+     * Decompress the stream, writing it to the start of the target file.
+     *
+     * @return the number of bytes written (which is equal to expectedSize), or -1 if the stream could not be
+     *         decompressed in parallel (because a chunk was too large), in which case the target must be truncated
+     *         and the stream decompressed sequentially instead.
+     * @throws ZipException
+     *             if the stream is invalid, or the size or CRC32 of the decompressed data does not match.
+     */
+    long inflateTo(final FileChannel target, final long expectedSize, final int expectedCrc)
+            throws IOException, InterruptedException {
+        final var chunks = new Chunk[(int) Math.min(Math.min(parallelism, numChunks),
+                Math.max(1, memoryBudget.getLimit() / CHUNK_MEMORY_ESTIMATE))];
+        long prevStopBit = 0;
+        byte[] prevWindow = new byte[0];
+        long outputPos = 0;
+        var crc = 0;
+        var reachedEnd = false;
+        for (int roundStart = 0; roundStart < numChunks && !reachedEnd; roundStart += chunks.length) {
+            final var roundSize = Math.min(chunks.length, numChunks - roundStart);
+            final var firstChunkIdx = roundStart;
+            var memoryCharged = roundSize * CHUNK_MEMORY_ESTIMATE;
+            memoryBudget.acquire(memoryCharged);
+            try {
+                // Find the chunk boundaries and decode the chunks speculatively, in parallel
+                runInParallel(roundSize, i -> chunks[i] = decodeSpeculatively(firstChunkIdx + i));
+
+                // Stitch the chunks together in order, decoding chunks again where they do not line up
+                var numValid = 0;
+                for (; numValid < roundSize && !reachedEnd; numValid++) {
+                    final var chunk = chunks[numValid];
+                    // Chunks decoded from a real block boundary line up with the previous chunk. (Speculatively
+                    // decoded chunks also need a full window, which is missing only if the stream ended early.)
+                    if (chunk.decoder == null || chunk.startBit != prevStopBit
+                            || chunk.startBit != 0 && prevWindow.length < DeflateDecoder.WINDOW_SIZE) {
+                        if (chunk.decoder == null) {
+                            chunk.decoder = takeDecoder();
+                        }
+                        chunk.startBit = prevStopBit;
+                        try {
+                            if (!chunk.decoder.decode(mappedFile, streamPos, streamLen, prevStopBit,
+                                    chunkStartBit(firstChunkIdx + numValid + 1), prevWindow)) {
+                                return -1;
+                            }
+                        } catch (final DataFormatException e) {
+                            throw new ZipException(e.getMessage());
+                        }
+                    }
+                    final var decoder = chunk.decoder;
+                    chunk.window = prevWindow;
+                    chunk.outputPos = outputPos;
+                    outputPos += decoder.getOutputLength();
+                    // The next chunk's window is the last 32kB of the previous window followed by this chunk
+                    final var nextWindowLen = (int) Math.min(DeflateDecoder.WINDOW_SIZE,
+                            (long) prevWindow.length + decoder.getOutputLength());
+                    final var nextWindow = new byte[nextWindowLen];
+                    decoder.resolve(decoder.getOutputStart() + decoder.getOutputLength() - nextWindowLen,
+                            nextWindowLen, prevWindow, nextWindow, 0);
+                    prevWindow = nextWindow;
+                    prevStopBit = decoder.getBitPosition();
+                    reachedEnd = decoder.reachedEndOfStream();
+                }
+                if (outputPos > expectedSize) {
+                    throw new ZipException("Zip entry is larger than its uncompressed size");
+                }
+
+                // Charge the memory used by the chunks beyond the estimate, now that it is known
+                long memoryUsed = 0;
+                for (int i = 0; i < roundSize; i++) {
+                    if (chunks[i] != null && chunks[i].decoder != null) {
+                        memoryUsed += chunks[i].decoder.getOutputMemorySize();
+                    }
+                }
+                if (memoryUsed > memoryCharged) {
+                    memoryBudget.charge(memoryUsed - memoryCharged);
+                    memoryCharged = memoryUsed;
+                }
+
+                // Resolve the markers in each chunk, and write the chunks, in parallel
+                runInParallel(numValid, i -> writeChunk(chunks[i], target));
+                for (int i = 0; i < roundSize; i++) {
+                    if (i < numValid) {
+                        crc = crc32Combine(crc, chunks[i].crc, chunks[i].decoder.getOutputLength());
+                    }
+                    if (chunks[i].decoder != null) {
+                        freeDecoders.add(chunks[i].decoder);
+                    }
+                    chunks[i] = null;
+                }
+            } finally {
+                memoryBudget.release(memoryCharged);
+            }
+        }
+        if (!reachedEnd) {
+            throw new ZipException("Unexpected end of deflate stream");
+        }
+        if (outputPos != expectedSize) {
+            throw new ZipException("Zip entry size does not match its uncompressed size");
+        }
+        if (crc != expectedCrc) {
+            throw new ZipException("Invalid zip entry CRC");
+        }
+        return outputPos;
+    }
+
+    /** Run a task for each index in {@code [0, n)}, on up to {@link #parallelism} threads. */
+    private void runInParallel(final int n, final IndexedTask task) throws IOException, InterruptedException {
+        try {
+            Utils.parallelFor(executor, parallelism - 1, n, task);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Get a free decoder, or create one. */
+    private SpeculativeInflater takeDecoder() {
+        final var decoder = freeDecoders.poll();
+        return decoder != null ? decoder : new SpeculativeInflater(MAX_CHUNK_OUTPUT_SIZE);
+    }
+
+    /**
+     * Find the start of a chunk, and decode it speculatively. The first chunk starts at the start of the stream.
+     * Each candidate block boundary in later chunks is tried in turn, until the chunk decodes without error.
+     */
+    private Chunk decodeSpeculatively(final int chunkIdx) throws IOException {
+        final var chunk = new Chunk();
+        final var decoder = takeDecoder();
+        final var endBit = Math.min(chunkStartBit(chunkIdx) + MAX_BOUNDARY_SEARCH_LEN * 8,
+                Math.min(chunkStartBit(chunkIdx + 1), streamLen * 8));
+        for (var bit = chunkStartBit(chunkIdx); (bit = findBlockBoundary(decoder, bit, endBit)) >= 0; bit++) {
+            try {
+                if (decoder.decode(mappedFile, streamPos, streamLen, bit, chunkStartBit(chunkIdx + 1),
+                        chunkIdx == 0 ? new byte[0] : null)) {
+                    chunk.decoder = decoder;
+                    chunk.startBit = bit;
+                }
+                break;
+            } catch (final DataFormatException e) {
+                if (chunkIdx == 0) {
+                    break;
+                }
+                // Not a real block boundary -- try the next candidate
+            }
+        }
+        if (chunk.decoder == null) {
+            freeDecoders.add(decoder);
+        }
+        return chunk;
+    }
+
+    /**
+     * Find the first bit position in {@code [fromBit, toBit)} where a non-final dynamic block header can be read.
+     * Returns fromBit if it is 0 (the start of the stream), or -1 if there is no such position.
+     */
+    private long findBlockBoundary(final DeflateDecoder decoder, final long fromBit, final long toBit)
+            throws IOException {
+        if (fromBit == 0) {
+            return 0;
+        }
+        // A dynamic block header needs at least 17 + 4 * 3 bits, and then code lengths and data
+        for (var bytePos = fromBit >>> 3; bytePos * 8 < toBit && bytePos + 16 <= streamLen; bytePos++) {
+            final var word0 = mappedFile.getLong(streamPos + bytePos);
+            final var word1 = mappedFile.getLong(streamPos + bytePos + 8);
+            for (int shift = bytePos * 8 < fromBit ? (int) (fromBit & 7) : 0; shift < 8; shift++) {
+                // Quick check of BFINAL = 0, BTYPE = 2 (dynamic), HLIT <= 29, HDIST <= 29
+                final var lo = shift == 0 ? word0 : (word0 >>> shift) | (word1 << (64 - shift));
+                if ((lo & 7) != 4 || ((lo >>> 3) & 31) > 29 || ((lo >>> 8) & 31) > 29) {
+                    continue;
+                }
+                // Check that the code length code is complete (as it must be), before parsing the whole header
+                final var hi = word1 >>> shift;
+                final var numCodelenCodes = (int) ((lo >>> 13) & 15) + 4;
+                var kraftSum = 0;
+                for (int i = 0, pos = 17; i < numCodelenCodes; i++, pos += 3) {
+                    final var len = (int) (pos <= 61 ? lo >>> pos
+                            : pos >= 64 ? hi >>> (pos - 64) : (lo >>> pos) | (hi << (64 - pos))) & 7;
+                    if (len != 0) {
+                        kraftSum += 128 >>> len;
+                    }
+                }
+                if (kraftSum != 128) {
+                    continue;
+                }
+                final var bit = bytePos * 8 + shift;
+                if (decoder.tryDynamicBlockHeader(mappedFile, streamPos, streamLen, bit)) {
+                    return bit;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Resolve the markers in a chunk, write it to the target, and compute its CRC32. */
+    private void writeChunk(final Chunk chunk, final FileChannel target) throws IOException {
+        final var decoder = chunk.decoder;
+        final var crc32 = new CRC32();
+        final var buf = new byte[WRITE_BUF_SIZE];
+        final var len = decoder.getOutputLength();
+        for (int off = 0; off < len;) {
+            final var n = Math.min(buf.length, len - off);
+            decoder.resolve(decoder.getOutputStart() + off, n, chunk.window, buf, 0);
+            crc32.update(buf, 0, n);
+            final var byteBuf = ByteBuffer.wrap(buf, 0, n);
+            while (byteBuf.hasRemaining()) {
+                target.write(byteBuf, chunk.outputPos + off + byteBuf.position());
+            }
+            if (bytesWritten != null) {
+                bytesWritten.add(n);
+            }
+            off += n;
+        }
+        chunk.crc = (int) crc32.getValue();
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Combine the CRC32 of two consecutive sequences of bytes, given the length of the second sequence (the
+     * algorithm of zlib's crc32_combine, which multiplies by powers of the CRC polynomial's shift matrix in GF(2)).
+     */
+    static int crc32Combine(final int crc1, final int crc2, final long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        final var even = new long[32];
+        final var odd = new long[32];
+        // The operator for one zero bit
+        odd[0] = 0xedb88320L;
+        var row = 1L;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // The operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        // Apply len2 zero bytes to crc1, squaring the operator for each bit of len2
+        var crc = crc1 & 0xffffffffL;
+        var len = len2;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            len >>>= 1;
+            if (len == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            len >>>= 1;
+        } while (len != 0);
+        return (int) (crc ^ (crc2 & 0xffffffffL));
+    }
+
+    private static long gf2MatrixTimes(final long[] mat, final long vec) {
+        var sum = 0L;
+        var v = vec;
+        for (int i = 0; v != 0; i++, v >>>= 1) {
+            if ((v & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(final long[] square, final long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+}
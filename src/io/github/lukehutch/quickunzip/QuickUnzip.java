@@ -22,19 +22,21 @@ package io.github.lukehutch.quickunzip;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.InvalidPathException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
-import io.github.lukehutch.quickunzip.Utils.AutoCloseableConcurrentQueue;
+import io.github.lukehutch.quickunzip.SizeClassStats.SizeClass;
 import io.github.lukehutch.quickunzip.Utils.AutoCloseableExecutorService;
-import io.github.lukehutch.quickunzip.Utils.AutoCloseableFutureListWithCompletionBarrier;
-import io.github.lukehutch.quickunzip.Utils.SingletonMap;
+import io.github.lukehutch.quickunzip.Utils.AutoCloseablePerThreadResource;
+import io.github.lukehutch.quickunzip.Utils.WorkStealingScheduler;
 
 /** A fast unzipper for java that unzips a zipfile contents in parallel across multiple threads. */
 public class QuickUnzip {
@@ -43,6 +45,294 @@ public class QuickUnzip {
     private static final int NUM_THREADS = Math.max(6,
             (int) Math.ceil(Runtime.getRuntime().availableProcessors() * 1.5f));
 
+    /**
+     * The number of worker threads when extracting on virtual threads. A virtual thread that blocks on file I/O
+     * does not tie up a platform thread, so many more workers can be used than CPU threads.
+     */
+    private static final int NUM_VIRTUAL_THREADS = 128;
+
+    /** The maximum number of virtual threads that inflate at the same time. */
+    private static final int NUM_INFLATE_CARRIERS = Runtime.getRuntime().availableProcessors();
+
+    /** The number of inflate threads of the write pipeline, by default. */
+    private static final int DEFAULT_PIPELINE_INFLATE_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The maximum number of platform worker threads when the concurrency is adapted while extracting, since blocked
+     * workers are cheap to park, and storage that benefits from a deep queue needs many more threads than CPUs.
+     */
+    private static final int MAX_ADAPTIVE_THREADS = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+
+    /** The number of workers that are active at the start, when the concurrency is adapted while extracting. */
+    private static final int INITIAL_ADAPTIVE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** The number of writer threads of the write pipeline enabled with the "-w" switch. */
+    private static final int DEFAULT_PIPELINE_WRITE_THREADS = NUM_THREADS;
+
+    /**
+     * Entries up to this size are extracted by the tiny-entry kernel: read or inflated in one call into the
+     * reusable direct buffer of the thread's EntryReader, and written with a single write, whichever engine is
+     * selected.
+     */
+    private static final long TINY_ENTRY_SIZE = 4 * 1024;
+
+    /**
+     * Entries at least this large are extracted by the huge-entry kernel: stored entries are copied in chunks, in
+     * parallel, and deflated entries are decompressed in parallel or indexed, if enabled.
+     */
+    private static final long HUGE_ENTRY_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The minimum estimated cost of a batch of work units claimed by a worker, in ns, so that tiny entries are
+     * claimed dozens at a time.
+     */
+    private static final long MIN_BATCH_COST_NS = 1_000_000;
+
+    /** Stored entries at least this large are copied in chunks, in parallel. */
+    private static final long CHUNKED_COPY_MIN_SIZE = HUGE_ENTRY_SIZE;
+
+    /** The chunk size for copying large stored entries. */
+    private static final long CHUNKED_COPY_CHUNK_SIZE = 16L * 1024 * 1024;
+
+    /** The checkpoint spacing of indexes built with the "-i" switch. */
+    private static final long DEFAULT_INDEX_SPACING = 4L * 1024 * 1024;
+
+    /** The number of threads that decompress an entry in parallel. */
+    private static final int PARALLEL_INFLATE_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final ConcurrentZipReader zipReader;
+    private final Path unzipDirPath;
+    private final boolean verbose;
+    private final InflateEngine inflateEngine;
+    private final boolean parallelInflate;
+    private final long indexSpacing;
+    private final int numWorkers;
+    private final Semaphore inflatePermits;
+    private final WritePipeline writePipeline;
+    private final boolean directoryAffinity;
+    private final boolean adaptiveConcurrency;
+    private final long mappedOutputMinSize;
+    private final SizeClassStats sizeClassStats = new SizeClassStats();
+    private final MemoryBudget memoryBudget;
+    private final ConcurrentLinkedQueue<EntryIndex> entryIndexes = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Integer, ChunkedCopy> chunkedCopies = new ConcurrentHashMap<>();
+    private final AutoCloseableExecutorService executor;
+    private final DirectoryTree directoryTree;
+    private final DirectoryHandles directoryHandles;
+    private final AutoCloseablePerThreadResource<ConcurrentZipReader.EntryReader> entryReaders;
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** The engine used to decompress deflated entries. */
+    public enum InflateEngine {
+        /**
+         * Read compressed data using positional reads into a heap buffer, and copy the inflated data to the output
+         * file through an InputStream.
+         */
+        STREAM,
+
+        /**
+         * Inflate directly from slices of the memory-mapped zipfile into a reusable direct buffer, and write the
+         * direct buffer to the output file's FileChannel.
+         */
+        MAPPED,
+
+        /**
+         * As with {@link #MAPPED}, but decompress using a pure-Java DEFLATE decoder, rather than the zlib-backed
+         * {@link java.util.zip.Inflater}.
+         */
+        PURE_JAVA
+    }
+
+    /** The way work is divided between threads, which is chosen to suit the shape of the zipfile by default. */
+    public enum Strategy {
+        /** Choose one of the other strategies from the profile of the zipfile's central directory. */
+        AUTO,
+
+        /** Extract all entries on the calling thread, for zipfiles too small to benefit from more threads. */
+        SERIAL,
+
+        /** Extract entries in parallel with each other. */
+        PARALLEL,
+
+        /**
+         * As with {@link #PARALLEL}, but also decompress each huge deflated entry on multiple threads, for zipfiles
+         * whose data is mostly in huge entries. (Huge stored entries are always copied in chunks, in parallel.)
+         */
+        CHUNKED,
+
+        /**
+         * As with {@link #PARALLEL}, but each worker claims many entries at a time (at least 1ms of estimated
+         * work), for zipfiles of mostly tiny files.
+         */
+        BATCHED
+    }
+
+    /** Unzip options. */
+    public static class Options {
+        private boolean overwrite;
+        private boolean verbose;
+        private InflateEngine inflateEngine = InflateEngine.STREAM;
+        private boolean parallelInflate;
+        private long indexSpacing;
+        private boolean virtualThreads;
+        private int writeThreads;
+        private int inflateThreads = DEFAULT_PIPELINE_INFLATE_THREADS;
+        private int writeQueueDepth;
+        private boolean directoryAffinity = true;
+        private boolean adaptiveConcurrency;
+        private Strategy strategy = Strategy.AUTO;
+        private long memoryBudget;
+        private boolean directoryHandles = true;
+        private long mappedOutputMinSize;
+
+        /** If true, overwrite existing files when unzipping (default: false). */
+        public Options setOverwrite(final boolean overwrite) {
+            this.overwrite = overwrite;
+            return this;
+        }
+
+        /** If true, show directory and file names as they are created (default: false). */
+        public Options setVerbose(final boolean verbose) {
+            this.verbose = verbose;
+            return this;
+        }
+
+        /** The engine used to decompress deflated entries (default: {@link InflateEngine#STREAM}). */
+        public Options setInflateEngine(final InflateEngine inflateEngine) {
+            this.inflateEngine = inflateEngine;
+            return this;
+        }
+
+        /**
+         * If true, decompress each large deflated entry using several threads, by decoding chunks of its
+         * compressed data speculatively in parallel (default: false). This speeds up zipfiles whose size is
+         * dominated by a few large entries.
+         */
+        public Options setParallelInflate(final boolean parallelInflate) {
+            this.parallelInflate = parallelInflate;
+            return this;
+        }
+
+        /**
+         * If positive, build a random-access index for each large deflated entry while extracting it, with
+         * checkpoints at least this many bytes apart, and save the indexes to a sidecar file next to the zipfile
+         * (see {@link EntryIndex}). Indexed entries are decompressed by a single thread. (Default: 0, meaning no
+         * indexes are built.)
+         */
+        public Options setIndexSpacing(final long indexSpacing) {
+            this.indexSpacing = indexSpacing;
+            return this;
+        }
+
+        /**
+         * If true, extract entries on virtual threads, so that many more entries can be blocked on file creation
+         * and writes at the same time than there are platform threads, while the number of threads inflating at
+         * the same time is limited to the number of CPU threads (default: false). This requires JDK 21 or later;
+         * on earlier JDKs, platform threads are used.
+         */
+        public Options setVirtualThreads(final boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * If positive, extract through a two-stage pipeline, where inflate threads decompress entries into
+         * buffers, and this many writer threads create the output files and write the buffers (see
+         * {@link WritePipeline}). Stored entries are copied by the writer threads. In this mode, deflated entries
+         * are always inflated from the memory-mapped zipfile, as with {@link InflateEngine#MAPPED} (or
+         * {@link InflateEngine#PURE_JAVA}, if selected). (Default: 0, meaning each worker thread both inflates and
+         * writes.)
+         */
+        public Options setWriteThreads(final int writeThreads) {
+            this.writeThreads = writeThreads;
+            return this;
+        }
+
+        /**
+         * The number of inflate threads of the write pipeline, if enabled with {@link #setWriteThreads(int)}
+         * (default: the number of CPU threads).
+         */
+        public Options setInflateThreads(final int inflateThreads) {
+            this.inflateThreads = inflateThreads;
+            return this;
+        }
+
+        /**
+         * The number of buffers of the write pipeline, if enabled with {@link #setWriteThreads(int)}, which limits
+         * how far the inflate threads can get ahead of the writer threads (default: 0, meaning the number of
+         * inflate threads plus twice the number of writer threads).
+         */
+        public Options setWriteQueueDepth(final int writeQueueDepth) {
+            this.writeQueueDepth = writeQueueDepth;
+            return this;
+        }
+
+        /**
+         * If true, each worker extracts whole runs of entries with the same parent directory, rather than many
+         * workers creating files in the same directory at the same time (default: true). Very large directories
+         * are still split between workers.
+         */
+        public Options setDirectoryAffinity(final boolean directoryAffinity) {
+            this.directoryAffinity = directoryAffinity;
+            return this;
+        }
+
+        /**
+         * If true, the number of active workers is adjusted while extracting, growing while the throughput (in
+         * bytes and entries per second) increases, and shrinking when it drops (default: false). The concurrency
+         * that was chosen is shown at the end in verbose mode.
+         */
+        public Options setAdaptiveConcurrency(final boolean adaptiveConcurrency) {
+            this.adaptiveConcurrency = adaptiveConcurrency;
+            return this;
+        }
+
+        /**
+         * The way work is divided between threads (default: {@link Strategy#AUTO}, which chooses a strategy from
+         * the entry count, size histogram and method mix of the zipfile). The chosen strategy is shown in verbose
+         * mode.
+         */
+        public Options setStrategy(final Strategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * The maximum number of bytes of decompressed data held in memory at once, in the buffers of the write
+         * pipeline and the chunks of entries decompressed in parallel (default: 0, meaning unlimited). Threads
+         * block rather than exceed the budget. The peak number of bytes in flight is shown in verbose mode. (The
+         * fixed-size buffers of each worker thread, of a few hundred kB, are not included.)
+         */
+        public Options setMemoryBudget(final long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /**
+         * If true, files are created relative to open handles of their directories, where supported (e.g. on
+         * Linux), rather than by absolute path, and symbolic links are not followed within the output directory
+         * (default: true).
+         */
+        public Options setDirectoryHandles(final boolean directoryHandles) {
+            this.directoryHandles = directoryHandles;
+            return this;
+        }
+
+        /**
+         * If positive, deflated entries of at least this many bytes are inflated straight into a memory mapping of
+         * the output file, which is extended to the uncompressed size of the entry first, rather than inflated
+         * into a buffer that is then written to the file (see {@link ConcurrentZipReader.EntryReader#inflateToMapped}).
+         * Not used with the write pipeline, or for entries that are decompressed in parallel or indexed. Mapping a
+         * file costs more than a few writes, so this only pays off for large entries. (Default: 0, meaning output
+         * files are never mapped.)
+         */
+        public Options setMappedOutputMinSize(final long mappedOutputMinSize) {
+            this.mappedOutputMinSize = mappedOutputMinSize;
+            return this;
+        }
+    }
+
     // -------------------------------------------------------------------------------------------------------------
 
     /**
@@ -65,6 +355,23 @@ public class QuickUnzip {
      */
     public static void quickUnzip(final Path inputZipfilePath, final Path outputDirPath, final boolean overwrite,
             final boolean verbose) {
+        quickUnzip(inputZipfilePath, outputDirPath, new Options().setOverwrite(overwrite).setVerbose(verbose));
+    }
+
+    /**
+     * Unzips the contents of the input zipfile into the requested output directory, creating the directory if it
+     * doesn't exist.
+     * 
+     * @param inputZipfilePath
+     *            The path to the zipfile to unzip.
+     * @param outputDirPath
+     *            The output directory to write the contents into, or null to unzip into a directory named after
+     *            the zipfile (see {@link #quickUnzip(Path, Path, boolean, boolean)}).
+     * @param options
+     *            The unzip options.
+     */
+    public static void quickUnzip(final Path inputZipfilePath, final Path outputDirPath, final Options options) {
+        final var verbose = options.verbose;
         // Check input zipfile name exists
         final var inputZipfile = inputZipfilePath.toFile();
         if (!inputZipfile.exists()) {
@@ -86,9 +393,10 @@ public class QuickUnzip {
                         || filenameExtension.equalsIgnoreCase("jar") ? fileLeafName.substring(0, lastDotIdx)
                                 : fileLeafName + "-files";
                 // Unzip into a dir in the same parent directory as the zipfile
-                unzipDirPath = new File(inputZipfile.getParentFile(), unzipDirName).toPath().toAbsolutePath();
+                unzipDirPath = new File(inputZipfile.getParentFile(), unzipDirName).toPath().toAbsolutePath()
+                        .normalize();
             } else {
-                unzipDirPath = outputDirPath.toAbsolutePath();
+                unzipDirPath = outputDirPath.toAbsolutePath().normalize();
             }
 
             // Check output dir exists, and if not, call mkdirs
@@ -109,142 +417,519 @@ public class QuickUnzip {
         if (verbose) {
             System.out.println("Unzipping " + inputZipfile + " to " + unzipDirPath);
         }
-        final var unzipDirPathFinal = unzipDirPath;
 
-        // Open the ZipFile and read all ZipEntries
-        final var zipEntries = new ArrayList<ZipEntry>();
-        try (var zipFile = new ZipFile(inputZipfile)) {
-            for (final var e = zipFile.entries(); e.hasMoreElements();) {
-                zipEntries.add(e.nextElement());
+        // Open the zipfile and read the central directory
+        final ConcurrentZipReader zipReader;
+        try {
+            zipReader = new ConcurrentZipReader(inputZipfilePath);
+        } catch (final IOException e) {
+            System.err.println("Could not read zipfile directory entries: " + e);
+            System.exit(1);
+            // Keep compiler happy
+            return;
+        }
+
+        // Choose how to divide work between threads
+        var strategy = options.strategy;
+        if (strategy == Strategy.AUTO) {
+            try {
+                final var profile = new ArchiveProfile(zipReader, TINY_ENTRY_SIZE, HUGE_ENTRY_SIZE);
+                strategy = profile.chooseStrategy();
+                if (verbose) {
+                    System.out.print(profile);
+                }
+            } catch (final IOException e) {
+                System.err.println("Could not profile zipfile: " + e);
+                strategy = Strategy.PARALLEL;
             }
+        }
+        if (verbose) {
+            System.out.println("Strategy: " + strategy.name().toLowerCase());
+        }
+
+        // Derive the directory tree from the entry names
+        final DirectoryTree directoryTree;
+        try {
+            directoryTree = new DirectoryTree(zipReader, unzipDirPath, verbose);
         } catch (final IOException e) {
             System.err.println("Could not read zipfile directory entries: " + e);
             System.exit(1);
+            // Keep compiler happy
+            return;
         }
 
-        // Singleton map indicating which directories were able to be successfully created (or already existed),
-        // to avoid duplicating work calling mkdirs() multiple times for the same directories
-        final var createdDirs = new SingletonMap<File, Boolean>() {
-            @Override
-            public Boolean newInstance(final File parentDir) throws Exception {
-                var parentDirExists = parentDir.exists();
-                if (!parentDirExists) {
-                    parentDirExists = parentDir.mkdirs();
-                    if (!parentDirExists) {
-                        // Check one more time, if mkdirs failed, in case there were some existing
-                        // symlinks putting the same dir on two physical paths, and another thread
-                        // already created the dir. 
-                        parentDirExists = parentDir.exists();
-                    }
-                    if (verbose) {
-                        final String dirPathRelative = unzipDirPathFinal.relativize(parentDir.toPath()).toString()
-                                + "/";
-                        if (!parentDirExists) {
-                            System.out.println(" Cannot create: " + dirPathRelative);
-                        } else if (!parentDir.isDirectory()) {
-                            // Can't overwrite a file with a directory 
-                            System.out.println("Already exists: " + dirPathRelative);
-                        } else {
-                            System.out.println("      Creating: " + dirPathRelative);
+        final var quickUnzip = new QuickUnzip(zipReader, unzipDirPath, options, strategy, directoryTree);
+        // Iterate through zip entries, extracting in parallel. All threads share the same ConcurrentZipReader.
+        try (zipReader; quickUnzip.entryReaders; quickUnzip.executor; quickUnzip.directoryHandles;
+                quickUnzip.writePipeline) {
+            // Create all directories before extracting any files, so that workers never wait for each other to
+            // create a directory
+            directoryTree.createDirectories(quickUnzip.executor, quickUnzip.numWorkers - 1);
+            if (verbose) {
+                System.out.println(directoryTree);
+            }
+            // Schedule the largest work units first
+            final var workPlan = new WorkPlan(zipReader, Math.min(quickUnzip.numWorkers, NUM_THREADS),
+                    CHUNKED_COPY_MIN_SIZE, CHUNKED_COPY_CHUNK_SIZE);
+            if (verbose) {
+                System.out.println(workPlan);
+            }
+            // Worker threads claim units of the plan in order, without a task or Future per unit, and (if
+            // directory affinity is enabled) whole runs of entries in the same directory at a time
+            final var scheduler = new WorkStealingScheduler(quickUnzip.numWorkers, workPlan.size(), i -> {
+                final var entryIdx = workPlan.getEntryIdx(i);
+                final var chunkIdx = workPlan.getChunkIdx(i);
+                if (chunkIdx >= 0) {
+                    // Copy large stored entries in chunks, in parallel
+                    quickUnzip.getChunkedCopy(entryIdx, workPlan.getNumChunks(entryIdx)).copyChunk(chunkIdx);
+                } else if (workPlan.isHeadUnit(i) || !workPlan.isInHead(entryIdx, -1)) {
+                    final var numChunks = workPlan.getNumChunks(entryIdx);
+                    if (numChunks == 0) {
+                        quickUnzip.extractEntry(entryIdx);
+                    } else {
+                        // Copy any chunks of the entry that were not in the head of the plan
+                        for (int j = 0; j < numChunks; j++) {
+                            if (!workPlan.isInHead(entryIdx, j)) {
+                                quickUnzip.getChunkedCopy(entryIdx, numChunks).copyChunk(j);
+                            }
                         }
                     }
-                    if (!parentDir.isDirectory()) {
-                        parentDirExists = false;
+                }
+            }, quickUnzip.directoryAffinity ? workPlan::isGroupStart : null);
+            if (strategy == Strategy.BATCHED) {
+                scheduler.setMinBatchWeight(workPlan::getEstimatedCost, MIN_BATCH_COST_NS);
+            }
+            final var controller = quickUnzip.adaptiveConcurrency
+                    ? new ConcurrencyController(scheduler, zipReader, quickUnzip.sizeClassStats,
+                            Math.min(quickUnzip.numWorkers, INITIAL_ADAPTIVE_THREADS), 1, quickUnzip.numWorkers)
+                    : null;
+            if (controller != null) {
+                controller.start();
+            }
+            try {
+                scheduler.run(quickUnzip.executor);
+            } finally {
+                if (controller != null) {
+                    controller.stop();
+                }
+            }
+            if (verbose && controller != null) {
+                System.out.println(controller);
+            }
+            if (verbose && scheduler.getNumFailed() > 0) {
+                System.out.println("Failed to extract " + scheduler.getNumFailed() + " work units, e.g.: "
+                        + scheduler.getFirstException());
+            }
+            if (quickUnzip.writePipeline != null) {
+                // Wait for the writer threads to finish
+                quickUnzip.writePipeline.close();
+                if (verbose) {
+                    if (quickUnzip.writePipeline.getNumFailed() > 0) {
+                        System.out.println("Failed " + quickUnzip.writePipeline.getNumFailed()
+                                + " writes, e.g.: " + quickUnzip.writePipeline.getFirstException());
                     }
+                    System.out.println(quickUnzip.writePipeline.getUtilization(quickUnzip.numWorkers));
                 }
-                return parentDirExists;
+            }
+            if (verbose) {
+                System.out.print(quickUnzip.sizeClassStats);
+                System.out.println(quickUnzip.directoryHandles);
+                System.out.println(quickUnzip.memoryBudget);
+            }
+        } catch (final IOException e) {
+            System.err.println("Could not close zipfile: " + e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted");
+        }
+        if (!quickUnzip.entryIndexes.isEmpty()) {
+            final var sidecarPath = EntryIndex.getSidecarPath(inputZipfilePath);
+            try {
+                EntryIndex.writeSidecar(sidecarPath, quickUnzip.entryIndexes);
+                if (verbose) {
+                    System.out.println("Wrote index of " + quickUnzip.entryIndexes.size() + " entries to "
+                            + sidecarPath);
+                }
+            } catch (final IOException e) {
+                System.err.println("Could not write index file " + sidecarPath + " : " + e);
+            }
+        }
+        if (verbose) {
+            System.out.println("Opened " + quickUnzip.entryReaders.getNumCreated() + " entry readers for "
+                    + zipReader.size() + " entries");
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    /** Create the state shared by all extraction tasks. */
+    private QuickUnzip(final ConcurrentZipReader zipReader, final Path unzipDirPath, final Options options,
+            final Strategy strategy, final DirectoryTree directoryTree) {
+        this.zipReader = zipReader;
+        this.unzipDirPath = unzipDirPath;
+        this.directoryTree = directoryTree;
+        // Files can only be mapped through a FileChannel that is open for reading
+        this.directoryHandles = new DirectoryHandles(directoryTree, options.directoryHandles, options.overwrite,
+                options.mappedOutputMinSize > 0, options.verbose);
+        this.verbose = options.verbose;
+        this.inflateEngine = options.inflateEngine;
+        final var serial = strategy == Strategy.SERIAL;
+        this.parallelInflate = !serial && (options.parallelInflate || strategy == Strategy.CHUNKED);
+        this.indexSpacing = options.indexSpacing;
+        this.directoryAffinity = options.directoryAffinity;
+        this.adaptiveConcurrency = !serial && options.adaptiveConcurrency;
+        this.mappedOutputMinSize = options.mappedOutputMinSize;
+        this.memoryBudget = new MemoryBudget(options.memoryBudget);
+        final var virtualThreadFactory = options.virtualThreads && !serial
+                ? Utils.newVirtualThreadFactory("QuickUnzip")
+                : null;
+        if (options.virtualThreads && !serial && virtualThreadFactory == null && verbose) {
+            System.out.println("Virtual threads are not supported by this JVM, using platform threads");
+        }
+        if (serial) {
+            // The calling thread is the only worker, so no other threads are started
+            this.numWorkers = 1;
+            this.writePipeline = null;
+        } else if (options.writeThreads > 0) {
+            // Only the inflate stage runs on the workers
+            this.numWorkers = Math.max(1, options.inflateThreads);
+            this.writePipeline = new WritePipeline(options.writeThreads, options.writeQueueDepth > 0
+                    ? options.writeQueueDepth : numWorkers + 2 * options.writeThreads, memoryBudget,
+                    directoryHandles::newFile);
+        } else {
+            this.numWorkers = virtualThreadFactory != null ? NUM_VIRTUAL_THREADS
+                    : adaptiveConcurrency ? MAX_ADAPTIVE_THREADS : NUM_THREADS;
+            this.writePipeline = null;
+        }
+        // The calling thread is one of the workers. If entries are decompressed in parallel, extra threads are
+        // needed to help, since the other workers are busy with their own work units.
+        final var numExecutorThreads = Math.max(1,
+                numWorkers - 1 + (parallelInflate ? PARALLEL_INFLATE_THREADS - 1 : 0));
+        this.executor = virtualThreadFactory != null
+                ? new AutoCloseableExecutorService(virtualThreadFactory, numExecutorThreads)
+                : new AutoCloseableExecutorService("QuickUnzip", numExecutorThreads);
+        // On virtual threads, limit the number of threads inflating at once, so that decompression does not
+        // monopolize the carrier threads (which are shared with the threads blocked on file I/O)
+        this.inflatePermits = virtualThreadFactory != null ? new Semaphore(NUM_INFLATE_CARRIERS) : null;
+
+        // One EntryReader per worker thread, reused for all the entries extracted by the thread
+        this.entryReaders = new AutoCloseablePerThreadResource<ConcurrentZipReader.EntryReader>() {
+            @Override
+            public ConcurrentZipReader.EntryReader newInstance() {
+                final var entryReader = zipReader.newEntryReader(inflateEngine == InflateEngine.PURE_JAVA);
+                entryReader.setInflatePermits(inflatePermits);
+                return entryReader;
             }
         };
+    }
 
-        // Iterate through ZipEntries, extracting in parallel
-        try (final var openZipFiles = new AutoCloseableConcurrentQueue<ZipFile>();
-                final var executor = new AutoCloseableExecutorService("QuickUnzip", NUM_THREADS);
-                final var futures = new AutoCloseableFutureListWithCompletionBarrier(zipEntries.size())) {
-            for (final var zipEntry : zipEntries) {
-                futures.add(executor.submit(() -> {
-                    final ThreadLocal<ZipFile> zipFileTL = ThreadLocal.withInitial(() -> {
-                        try {
-                            // Open one ZipFile instance per thread
-                            final ZipFile zipFile = new ZipFile(inputZipfile);
-                            openZipFiles.add(zipFile);
-                            return zipFile;
-                        } catch (final IOException e) {
-                            // Should not happen unless zipfile was just barely deleted, since we opened it already
-                            System.err.println("Could not open zipfile " + inputZipfile + " : " + e);
-                            System.exit(1);
-                        }
-                        // Keep compiler happy
-                        return null;
-                    });
-                    var entryName = zipEntry.getName();
-                    while (entryName.startsWith("/")) {
-                        // Strip leading "/" if present
-                        entryName = entryName.substring(1);
+    /**
+     * Get the output path for a file entry. The file is created by {@link DirectoryHandles#newFile(int, Path)},
+     * which skips the entry if the file already exists (or replaces the file, in overwrite mode).
+     *
+     * @return the output path, or null if the entry should not be extracted.
+     */
+    private Path prepareOutputFile(final int entryIdx) throws Exception {
+        // The parent directory was created before extraction started
+        final var parentDir = directoryTree.getEntryDir(entryIdx);
+        if (parentDir == null) {
+            return null;
+        }
+        final var entryName = zipReader.getName(entryIdx);
+        return parentDir.resolve(DirectoryTree.getLeafName(entryName));
+    }
+
+    /** Extract a single zip entry. (Directory entries were created with the directory tree.) */
+    private void extractEntry(final int entryIdx) throws Exception {
+        if (!zipReader.isDirectory(entryIdx)) {
+            var extracted = false;
+            try {
+                // Reject an entry that cannot be read (e.g. with an unsupported compression method) before its
+                // output file is created
+                zipReader.checkReadable(entryIdx);
+                final var entryPath = prepareOutputFile(entryIdx);
+                // A writer thread of the write pipeline only creates the file after the entry is decompressed, so
+                // an existing file is skipped first
+                if (entryPath != null && !(writePipeline != null
+                        && directoryHandles.skipExisting(entryIdx, entryPath))) {
+                    extractFile(entryIdx, entryPath);
+                    extracted = true;
+                }
+            } finally {
+                if (!extracted) {
+                    // The output file was not created, so the entry is done with its directory. (Otherwise the
+                    // directory was released when the file was created, or will be, by another thread.)
+                    directoryHandles.releaseEntry(entryIdx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Extract a file entry to the given path, which must not already exist, using the kernel for the size class of
+     * the entry. Each kernel is a separate method, so that the JIT compiles it for the types it actually uses.
+     */
+    private void extractFile(final int entryIdx, final Path entryPath) throws Exception {
+        final var size = zipReader.getSize(entryIdx);
+        final var startTime = System.nanoTime();
+        final SizeClass sizeClass;
+        if (size <= TINY_ENTRY_SIZE) {
+            sizeClass = SizeClass.TINY;
+            extractTinyFile(entryIdx, entryPath);
+        } else if (size < HUGE_ENTRY_SIZE) {
+            sizeClass = SizeClass.MEDIUM;
+            extractMediumFile(entryIdx, entryPath);
+        } else {
+            sizeClass = SizeClass.HUGE;
+            extractHugeFile(entryIdx, entryPath);
+        }
+        sizeClassStats.add(sizeClass, 1, size, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Tiny entries are read or inflated in one call into the reusable buffer of the thread's EntryReader, and
+     * written with a single write.
+     */
+    private void extractTinyFile(final int entryIdx, final Path entryPath) throws Exception {
+        if (writePipeline != null) {
+            try (var outputFile = writePipeline.newOutputFile(entryIdx, entryPath)) {
+                try {
+                    outputFile.write(entryReaders.get().readFully(entryIdx));
+                } catch (final Throwable e) {
+                    outputFile.abort();
+                    throw e;
+                }
+            }
+        } else {
+            // Create the file first, so that an entry whose file already exists is not decompressed
+            final var outputChannel = directoryHandles.newFile(entryIdx, entryPath);
+            if (outputChannel != null) {
+                try (outputChannel) {
+                    final var data = entryReaders.get().readFully(entryIdx);
+                    while (data.hasRemaining()) {
+                        outputChannel.write(data);
                     }
+                } catch (final Throwable e) {
+                    Utils.deletePartialFile(entryPath, e);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Medium entries are copied, or streamed through the reusable buffers of the thread. */
+    private void extractMediumFile(final int entryIdx, final Path entryPath) throws Exception {
+        if (zipReader.getMethod(entryIdx) == ZipEntry.STORED && writePipeline != null) {
+            // Copy stored entries on a writer thread
+            writePipeline.transferTo(zipReader, entryIdx, entryPath);
+        } else if (zipReader.getMethod(entryIdx) == ZipEntry.STORED) {
+            // Stored entries are copied by the kernel directly from the zipfile to the output file, without
+            // passing through the Java heap
+            final var outputChannel = directoryHandles.newFile(entryIdx, entryPath);
+            if (outputChannel != null) {
+                try (outputChannel) {
+                    zipReader.transferTo(entryIdx, outputChannel);
+                } catch (final Throwable e) {
+                    Utils.deletePartialFile(entryPath, e);
+                    throw e;
+                }
+            }
+        } else if (writePipeline != null) {
+            // Inflate on this thread, and hand off the inflated data to the writer threads
+            try (var outputFile = writePipeline.newOutputFile(entryIdx, entryPath)) {
+                try {
+                    entryReaders.get().inflateTo(entryIdx, outputFile);
+                } catch (final Throwable e) {
+                    outputFile.abort();
+                    throw e;
+                }
+            }
+        } else if (mappedOutputMinSize > 0 && zipReader.getSize(entryIdx) >= mappedOutputMinSize) {
+            // Inflate straight into a mapping of the output file, which is extended to its full size first
+            final var outputChannel = directoryHandles.newFile(entryIdx, entryPath);
+            if (outputChannel != null) {
+                try (outputChannel) {
+                    entryReaders.get().inflateToMapped(entryIdx, outputChannel);
+                } catch (final Throwable e) {
+                    Utils.deletePartialFile(entryPath, e);
+                    throw e;
+                }
+            }
+        } else if (inflateEngine == InflateEngine.MAPPED || inflateEngine == InflateEngine.PURE_JAVA) {
+            // Inflate from the mapped zipfile into a direct buffer, and write the buffer to the output file
+            final var outputChannel = directoryHandles.newFile(entryIdx, entryPath);
+            if (outputChannel != null) {
+                try (outputChannel) {
+                    entryReaders.get().inflateTo(entryIdx, outputChannel);
+                } catch (final Throwable e) {
+                    Utils.deletePartialFile(entryPath, e);
+                    throw e;
+                }
+            }
+        } else {
+            // Copy the contents of the zip entry InputStream to the output file
+            final var outputChannel = directoryHandles.newFile(entryIdx, entryPath);
+            if (outputChannel != null) {
+                try (outputChannel; var inputStream = entryReaders.get().getInputStream(entryIdx)) {
+                    inputStream.transferTo(Channels.newOutputStream(outputChannel));
+                } catch (final Throwable e) {
+                    Utils.deletePartialFile(entryPath, e);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Huge deflated entries are decompressed while building an index, or decompressed in parallel, if enabled,
+     * otherwise they are streamed like medium entries. (Huge stored entries are copied in chunks by
+     * {@link ChunkedCopy}.)
+     */
+    private void extractHugeFile(final int entryIdx, final Path entryPath) throws Exception {
+        if (zipReader.getMethod(entryIdx) != ZipEntry.STORED && indexSpacing > 0) {
+            // Decompress the entry while building an index of it
+            final var outputChannel = directoryHandles.newFile(entryIdx, entryPath);
+            if (outputChannel != null) {
+                try (outputChannel) {
+                    entryIndexes.add(zipReader.buildIndex(entryIdx, indexSpacing, outputChannel));
+                } catch (final Throwable e) {
+                    Utils.deletePartialFile(entryPath, e);
+                    throw e;
+                }
+            }
+        } else if (zipReader.getMethod(entryIdx) != ZipEntry.STORED && parallelInflate) {
+            // Decompress chunks of a large entry in parallel, with help from other worker threads
+            final var outputChannel = directoryHandles.newFile(entryIdx, entryPath);
+            if (outputChannel != null) {
+                try (outputChannel) {
+                    zipReader.inflateParallel(entryIdx, outputChannel, executor, PARALLEL_INFLATE_THREADS,
+                            memoryBudget);
+                } catch (final Throwable e) {
+                    Utils.deletePartialFile(entryPath, e);
+                    throw e;
+                }
+            }
+        } else {
+            extractMediumFile(entryIdx, entryPath);
+        }
+    }
+
+    /**
+     * Get the ChunkedCopy shared by all chunks of a large stored entry, creating it if needed. A ChunkedCopy is
+     * only kept until all of its chunks have been copied, so the map only holds the entries in progress.
+     */
+    private ChunkedCopy getChunkedCopy(final int entryIdx, final int numChunks) {
+        return chunkedCopies.computeIfAbsent(entryIdx, idx -> new ChunkedCopy(idx, numChunks));
+    }
+
+    /**
+     * A large stored entry that is copied in fixed-size chunks, so that the chunks can be copied in parallel by
+     * different worker threads. The output file is created by whichever chunk is copied first. The chunks can be
+     * written in any order, since a write past the end of a file extends it.
+     */
+    private class ChunkedCopy {
+        private final int entryIdx;
+        private final long size;
+        private final AtomicInteger chunksRemaining;
+        private boolean prepared;
+        private Path entryPath;
+
+        ChunkedCopy(final int entryIdx, final int numChunks) {
+            this.entryIdx = entryIdx;
+            this.size = zipReader.getSize(entryIdx);
+            this.chunksRemaining = new AtomicInteger(numChunks);
+        }
+
+        /** Create the output file, the first time this is called. Returns null if the entry is not copied. */
+        private synchronized Path getEntryPath() throws Exception {
+            if (!prepared) {
+                prepared = true;
+                entryPath = prepareOutputFile(entryIdx);
+                if (entryPath == null) {
+                    // The file cannot be created, so the entry is done with its directory
+                    directoryHandles.releaseEntry(entryIdx);
+                } else {
+                    final FileChannel outputChannel;
                     try {
-                        // Make sure we don't allow paths that use "../" to break out of the unzip root dir
-                        final var entryPath = unzipDirPathFinal.resolve(entryName);
-                        if (!entryPath.startsWith(unzipDirPathFinal)) {
-                            if (verbose) {
-                                System.out.println("      Bad path: " + entryName);
-                            }
-                        } else if (zipEntry.isDirectory()) {
-                            // Recreate directory entries, so that empty directories are recreated 
-                            createdDirs.getOrCreateSingleton(entryPath.toFile());
-                        } else {
-                            // Create parent directories if needed
-                            final var entryFile = entryPath.toFile();
-                            final var parentDir = entryFile.getParentFile();
-                            final var parentDirExists = createdDirs.getOrCreateSingleton(parentDir);
-                            if (parentDirExists) {
-                                // Open ZipEntry as an InputStream
-                                try (var inputStream = zipFileTL.get().getInputStream(zipEntry)) {
-                                    if (overwrite) {
-                                        if (verbose) {
-                                            System.out.println("     Unzipping: " + entryName);
-                                        }
-                                        // Copy the contents of the ZipEntry InputStream to the output file,
-                                        // overwriting existing files of the same name
-                                        Files.copy(inputStream, entryPath, StandardCopyOption.REPLACE_EXISTING);
-                                    } else {
-                                        if (!entryFile.exists()) {
-                                            if (verbose) {
-                                                System.out.println("     Unzipping: " + entryName);
-                                            }
-                                            // Copy the contents of the ZipEntry InputStream to the output file
-                                            Files.copy(inputStream, entryPath);
-                                        } else if (verbose) {
-                                            System.out.println("Already exists: " + entryName);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    } catch (final InvalidPathException ex) {
-                        if (verbose) {
-                            System.out.println("  Invalid path: " + entryName);
-                        }
+                        outputChannel = directoryHandles.newFile(entryIdx, entryPath);
+                    } catch (final IOException e) {
+                        entryPath = null;
+                        throw e;
+                    }
+                    if (outputChannel == null) {
+                        entryPath = null;
+                    } else {
+                        outputChannel.close();
                     }
-                    // Return placeholder Void result for Future<Void>
-                    return null;
-                }));
+                }
+            }
+            return entryPath;
+        }
+
+        /** Copy one chunk of the entry to the same position in the output file. */
+        void copyChunk(final int chunkIdx) throws Exception {
+            final var startTime = System.nanoTime();
+            long bytesCopied = 0;
+            try {
+                final var path = getEntryPath();
+                if (path != null) {
+                    final var chunkStart = (long) chunkIdx * CHUNKED_COPY_CHUNK_SIZE;
+                    try (var outputChannel = directoryHandles.openFile(entryIdx, path)) {
+                        outputChannel.position(chunkStart);
+                        bytesCopied = zipReader.transferTo(entryIdx, chunkStart,
+                                Math.min(CHUNKED_COPY_CHUNK_SIZE, size - chunkStart), outputChannel);
+                    }
+                }
+            } catch (final Throwable e) {
+                abandon(e);
+                throw e;
+            } finally {
+                final var lastChunk = chunksRemaining.decrementAndGet() == 0;
+                if (lastChunk) {
+                    // All chunks have been copied
+                    chunkedCopies.remove(entryIdx);
+                }
+                sizeClassStats.add(SizeClass.HUGE, lastChunk ? 1 : 0, bytesCopied, System.nanoTime() - startTime);
+            }
+        }
+
+        /** Delete the output file after a chunk failed to copy, so that the remaining chunks are skipped. */
+        private synchronized void abandon(final Throwable cause) {
+            if (entryPath != null) {
+                Utils.deletePartialFile(entryPath, cause);
+                entryPath = null;
             }
         }
-        System.out.flush();
-        System.err.flush();
     }
 
     // -------------------------------------------------------------------------------------------------------------
 
     public static void main(final String[] args) {
         final var unmatchedArgs = new ArrayList<String>();
-        boolean overwrite = false;
-        boolean verbose = true;
+        final var options = new Options().setVerbose(true);
         for (final var arg : args) {
             if (arg.equals("-o")) {
-                overwrite = true;
+                options.setOverwrite(true);
             } else if (arg.equals("-q")) {
-                verbose = false;
+                options.setVerbose(false);
+            } else if (arg.equals("-m")) {
+                options.setInflateEngine(InflateEngine.MAPPED);
+            } else if (arg.equals("-j")) {
+                options.setInflateEngine(InflateEngine.PURE_JAVA);
+            } else if (arg.equals("-p")) {
+                options.setParallelInflate(true);
+            } else if (arg.equals("-i")) {
+                options.setIndexSpacing(DEFAULT_INDEX_SPACING);
+            } else if (arg.equals("-t")) {
+                options.setVirtualThreads(true);
+            } else if (arg.equals("-w")) {
+                options.setWriteThreads(DEFAULT_PIPELINE_WRITE_THREADS);
+            } else if (arg.equals("-a")) {
+                options.setAdaptiveConcurrency(true);
+            } else if (arg.matches("-b[0-9]+")) {
+                options.setMemoryBudget(Long.parseLong(arg.substring(2)) * 1024 * 1024);
+            } else if (arg.matches("-x[0-9]+")) {
+                options.setMappedOutputMinSize(Math.max(1, Long.parseLong(arg.substring(2)) * 1024 * 1024));
             } else if (arg.startsWith("-")) {
                 System.err.println("Unknown switch: " + arg);
                 System.exit(1);
@@ -253,13 +938,23 @@ public class QuickUnzip {
             }
         }
         if (unmatchedArgs.size() != 1 && unmatchedArgs.size() != 2) {
-            System.err.println(
-                    "Syntax: java " + QuickUnzip.class.getName() + " [-o] [-q] zipfilename.zip [outputdir]");
+            System.err.println("Syntax: java " + QuickUnzip.class.getName()
+                    + " [-o] [-q] [-m|-j] [-p] [-i] [-t] [-w] [-a] [-bMB] [-xMB] zipfilename.zip [outputdir]");
             System.err.println(" Where:  -q => quiet");
             System.err.println("         -o => overwrite");
+            System.err.println("         -m => inflate from a memory mapping of the zipfile into direct buffers");
+            System.err.println("         -j => as -m, but using a pure-Java inflater");
+            System.err.println("         -p => decompress each large deflated entry on multiple threads");
+            System.err.println("         -i => save a random-access index of large deflated entries to "
+                    + "zipfilename.zip" + EntryIndex.SIDECAR_EXTENSION);
+            System.err.println("         -t => extract on virtual threads (JDK 21+)");
+            System.err.println("         -w => inflate and write on separate pools of threads");
+            System.err.println("         -a => adapt the number of active workers to the measured throughput");
+            System.err.println("       -bMB => limit decompressed data in memory to MB megabytes (e.g. -b256)");
+            System.err.println("       -xMB => inflate entries of MB megabytes or more into mapped output files");
             System.exit(1);
         }
         quickUnzip(Paths.get(unmatchedArgs.get(0)),
-                unmatchedArgs.size() == 2 ? Paths.get(unmatchedArgs.get(1)) : null, overwrite, verbose);
+                unmatchedArgs.size() == 2 ? Paths.get(unmatchedArgs.get(1)) : null, options);
     }
 }
@@ -0,0 +1,238 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import io.github.lukehutch.quickunzip.QuickUnzip.Options;
+import io.github.lukehutch.quickunzip.QuickUnzip.Strategy;
+
+/**
+ * Benchmarks extraction configurations side by side. Each configuration extracts each zipfile several times, with
+ * the configurations interleaved in every round, so that they see the same page cache and filesystem state. The
+ * zipfiles are given on the command line, or if none are given, synthetic zipfiles are generated in a temporary
+ * directory.
+ */
+public class QuickUnzipBenchmark {
+    /** The default number of times each configuration extracts each zipfile. */
+    private static final int DEFAULT_ROUNDS = 5;
+
+    /** A named set of unzip options. */
+    private static class Config {
+        final String name;
+        final Supplier<Options> options;
+
+        Config(final String name, final Supplier<Options> options) {
+            this.name = name;
+            this.options = options;
+        }
+    }
+
+    /** The configurations to compare. */
+    private static List<Config> getConfigs() {
+        final var configs = new ArrayList<Config>();
+        configs.add(new Config("platform threads", () -> new Options()));
+        configs.add(new Config("no directory affinity", () -> new Options().setDirectoryAffinity(false)));
+        configs.add(new Config("no directory handles", () -> new Options().setDirectoryHandles(false)));
+        // Large entries written through a buffer and through a mapping of the output file, with the entry-parallel
+        // strategy, so that large deflated entries are not decompressed in parallel chunks instead
+        configs.add(new Config("buffered output", () -> new Options().setStrategy(Strategy.PARALLEL)));
+        configs.add(new Config("mapped output (1MB+)",
+                () -> new Options().setStrategy(Strategy.PARALLEL).setMappedOutputMinSize(1024 * 1024)));
+        if (Utils.newVirtualThreadFactory("QuickUnzipBenchmark") != null) {
+            configs.add(new Config("virtual threads", () -> new Options().setVirtualThreads(true)));
+        } else {
+            System.out.println("Virtual threads are not supported by this JVM, skipping virtual thread config");
+        }
+        configs.add(new Config("inflate/write pipeline", () -> new Options()
+                .setWriteThreads(Math.max(4, Runtime.getRuntime().availableProcessors()))));
+        configs.add(new Config("adaptive concurrency", () -> new Options().setAdaptiveConcurrency(true)));
+        return configs;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Write a zipfile of numFiles small deflated text files of minSize to maxSize bytes, spread evenly over
+     * numDirs directories (or at the top level, if numDirs is 0). As with zip tools, the entries of each directory
+     * are stored together.
+     */
+    private static void writeSmallFiles(final Path zipfilePath, final int numFiles, final int numDirs,
+            final int minSize, final int maxSize) throws IOException {
+        final var random = new Random(1);
+        final var filesPerDir = numDirs == 0 ? numFiles : (numFiles + numDirs - 1) / numDirs;
+        try (var zipOut = new ZipOutputStream(Files.newOutputStream(zipfilePath))) {
+            for (int i = 0; i < numFiles; i++) {
+                zipOut.putNextEntry(new ZipEntry(
+                        (numDirs == 0 ? "" : "dir" + i / filesPerDir + "/") + "file" + i + ".txt"));
+                zipOut.write(randomText(random, minSize + random.nextInt(maxSize - minSize)));
+                zipOut.closeEntry();
+            }
+        }
+    }
+
+    /** Generate about len bytes of compressible text. */
+    static byte[] randomText(final Random random, final int len) {
+        final var words = new String[] { "entry", "zip", "file", "data", "index", "thread", "inflate", "write",
+                "block", "stream" };
+        final var buf = new StringBuilder(len + 16);
+        while (buf.length() < len) {
+            buf.append(words[random.nextInt(words.length)]).append(random.nextInt(100)).append(' ');
+        }
+        return buf.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a zipfile of large deflated text files of the given sizes in MB. Each file repeats a block of random
+     * text that is larger than the 32kB DEFLATE window, so it compresses about as well as ordinary text.
+     */
+    private static void writeLargeFiles(final Path zipfilePath, final int... sizesMB) throws IOException {
+        final var random = new Random(1);
+        try (var zipOut = new ZipOutputStream(Files.newOutputStream(zipfilePath))) {
+            for (int i = 0; i < sizesMB.length; i++) {
+                zipOut.putNextEntry(new ZipEntry("large" + i + ".txt"));
+                final var block = randomText(random, 1024 * 1024);
+                for (long remaining = sizesMB[i] * 1024L * 1024L; remaining > 0; remaining -= block.length) {
+                    zipOut.write(block, 0, (int) Math.min(block.length, remaining));
+                }
+                zipOut.closeEntry();
+            }
+        }
+    }
+
+    /** Generate the synthetic zipfiles in the given directory. */
+    private static List<Path> generateZipfiles(final Path dir) throws IOException {
+        final var zipfiles = new ArrayList<Path>();
+        final var manySmallFiles = dir.resolve("many-small-files.zip");
+        System.out.println("Generating " + manySmallFiles);
+        writeSmallFiles(manySmallFiles, 20_000, 100, 256, 4096);
+        zipfiles.add(manySmallFiles);
+        // The same number of tiny files in one directory, and spread over many directories, to show the cost of
+        // contention for the lock on a directory when files are created in it concurrently
+        final var flatDir = dir.resolve("flat-100k.zip");
+        System.out.println("Generating " + flatDir);
+        writeSmallFiles(flatDir, 100_000, 0, 16, 256);
+        zipfiles.add(flatDir);
+        final var dirTree = dir.resolve("tree-100k.zip");
+        System.out.println("Generating " + dirTree);
+        writeSmallFiles(dirTree, 100_000, 1000, 16, 256);
+        zipfiles.add(dirTree);
+        // A few large deflated files, to compare the ways large entries are written (e.g. mapped output against
+        // inflating through a buffer)
+        final var largeFiles = dir.resolve("large-files.zip");
+        System.out.println("Generating " + largeFiles);
+        writeLargeFiles(largeFiles, 64, 128, 256, 512);
+        zipfiles.add(largeFiles);
+        return zipfiles;
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** Recursively delete a file or directory, if it exists. */
+    private static void deleteRecursively(final Path path) throws IOException {
+        if (Files.exists(path)) {
+            try (Stream<Path> paths = Files.walk(path)) {
+                for (final var p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+
+    /** Extract the zipfile into an empty directory, and return the time taken in ns. */
+    private static long time(final Path zipfilePath, final Path outputDir, final Options options)
+            throws IOException {
+        deleteRecursively(outputDir);
+        final var startTime = System.nanoTime();
+        QuickUnzip.quickUnzip(zipfilePath, outputDir, options);
+        return System.nanoTime() - startTime;
+    }
+
+    /** Run each configuration on the zipfile for the given number of rounds, and print the results. */
+    private static void benchmark(final Path zipfilePath, final List<Config> configs, final int rounds,
+            final Path outputDir) throws IOException {
+        final int numEntries;
+        try (var zipReader = new ConcurrentZipReader(zipfilePath)) {
+            numEntries = zipReader.size();
+        }
+        System.out.println("\n" + zipfilePath + " (" + Files.size(zipfilePath) + " bytes, " + numEntries
+                + " entries)");
+        // Warm up each configuration once
+        for (final var config : configs) {
+            time(zipfilePath, outputDir, config.options.get());
+        }
+        final var timesNs = new long[configs.size()][rounds];
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < configs.size(); i++) {
+                timesNs[i][round] = time(zipfilePath, outputDir, configs.get(i).options.get());
+            }
+        }
+        for (int i = 0; i < configs.size(); i++) {
+            final var times = timesNs[i];
+            Arrays.sort(times);
+            System.out.println(String.format("  %-24s min %8.1f ms   median %8.1f ms   %9.0f entries/s (median)",
+                    configs.get(i).name, times[0] / 1e6, times[rounds / 2] / 1e6,
+                    numEntries / (times[rounds / 2] / 1e9)));
+        }
+        deleteRecursively(outputDir);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        var rounds = DEFAULT_ROUNDS;
+        final var zipfiles = new ArrayList<Path>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-r") && i + 1 < args.length) {
+                rounds = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].startsWith("-")) {
+                System.err.println("Syntax: java " + QuickUnzipBenchmark.class.getName()
+                        + " [-r rounds] [zipfilename.zip ...]");
+                System.exit(1);
+            } else {
+                zipfiles.add(Paths.get(args[i]));
+            }
+        }
+        final var tempDir = Files.createTempDirectory("quickunzip-benchmark");
+        try {
+            if (zipfiles.isEmpty()) {
+                zipfiles.addAll(generateZipfiles(tempDir));
+            }
+            final var configs = getConfigs();
+            for (final var zipfile : zipfiles) {
+                benchmark(zipfile, configs, rounds, tempDir.resolve("out"));
+            }
+        } finally {
+            deleteRecursively(tempDir);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the number of entries and bytes extracted by each size-class kernel, and the time worker threads
+ * spent in each kernel, to show where extraction time goes. The counters can be updated concurrently.
+ */
+class SizeClassStats {
+    /** The size classes of entries, each of which is extracted by its own kernel. */
+    enum SizeClass {
+        /** Entries that are inflated in one call into a reusable buffer, and written with a single write. */
+        TINY("tiny"),
+
+        /** Entries that are streamed through the reusable buffers of the worker thread. */
+        MEDIUM("medium"),
+
+        /** Entries that are copied in chunks, or inflated in parallel or while being indexed, if enabled. */
+        HUGE("huge");
+
+        final String label;
+
+        SizeClass(final String label) {
+            this.label = label;
+        }
+    }
+
+    private final LongAdder[] numEntries = newAdders();
+    private final LongAdder[] numBytes = newAdders();
+    private final LongAdder[] nanos = newAdders();
+
+    private static LongAdder[] newAdders() {
+        final var adders = new LongAdder[SizeClass.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /** Record that a kernel extracted the given number of entries and bytes, in the given time. */
+    void add(final SizeClass sizeClass, final int entries, final long bytes, final long elapsedNanos) {
+        final var i = sizeClass.ordinal();
+        numEntries[i].add(entries);
+        numBytes[i].add(bytes);
+        nanos[i].add(elapsedNanos);
+    }
+
+    /** The total number of entries extracted so far. */
+    long getTotalEntries() {
+        long total = 0;
+        for (final var adder : numEntries) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    /** The total number of bytes extracted so far. */
+    long getTotalBytes() {
+        long total = 0;
+        for (final var adder : numBytes) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    /**
+     * One line per size class that extracted any entries, with the throughput per thread (i.e. in proportion to
+     * the time worker threads spent in the kernel, rather than the elapsed time).
+     */
+    @Override
+    public String toString() {
+        final var buf = new StringBuilder();
+        for (final var sizeClass : SizeClass.values()) {
+            final var i = sizeClass.ordinal();
+            final var entries = numEntries[i].sum();
+            final var bytes = numBytes[i].sum();
+            final var seconds = Math.max(1, nanos[i].sum()) / 1e9;
+            if (entries > 0 || bytes > 0) {
+                buf.append(String.format("%6s entries: %9d, %14d bytes, %9.1f ms thread time, "
+                        + "%8.1f MB/s per thread, %9.0f entries/s per thread%n", sizeClass.label, entries, bytes,
+                        seconds * 1e3, bytes / seconds / 1e6, entries / seconds));
+            }
+        }
+        return buf.toString();
+    }
+}
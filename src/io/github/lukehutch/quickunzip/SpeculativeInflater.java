@@ -0,0 +1,265 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * A DEFLATE decoder for decoding a part of a stream that starts at a block boundary, without knowing the 32kB of
+ * output that precedes the part (the window), so that separate parts of a stream can be decoded in parallel.
+ *
+ * <p>
+ * Output is produced as 16-bit symbols: a symbol less than 256 is a byte of output, and a symbol
+ * {@code MARKER + j} (copied by a back-reference into the unknown window) stands for byte j of the window, and is
+ * resolved to a byte once the window is known, by {@link #resolve}. When the window is known, no markers are
+ * produced.
+ */
+class SpeculativeInflater extends DeflateDecoder {
+    /** Symbols at or above this value refer to a byte of the window. */
+    static final char MARKER = 0x8000;
+
+    /** The longest match, which may be copied past the output limit. */
+    private static final int OUTPUT_SLACK = 258;
+
+    private static final int INITIAL_OUTPUT_SIZE = 1 << 20;
+
+    /** The maximum number of symbols of output for one part of a stream. */
+    private final int maxOutputLen;
+
+    /**
+     * Output buffer: the window (either markers or known bytes) in {@code [0, WINDOW_SIZE)}, followed by the
+     * output.
+     */
+    private char[] out = new char[INITIAL_OUTPUT_SIZE];
+
+    /** The lowest output index that a back-reference may copy from. */
+    private int windowStart;
+
+    /** Staging buffer for stored blocks. */
+    private final byte[] storedBuf = new byte[16 * 1024];
+
+    /** Create a SpeculativeInflater that produces up to maxOutputLen bytes of output for each part of a stream. */
+    SpeculativeInflater(final int maxOutputLen) {
+        this.maxOutputLen = maxOutputLen;
+    }
+
+    /**
+     * Decode the part of the compressed stream in the range {@code [pos, pos + len)} of the mapped file that starts
+     * at the block header at bit position startBit of the stream, and ends at the end of the stream, or at the
+     * first block header at or after stopBit.
+     *
+     * @param window
+     *            the bytes of output preceding the part (up to {@value #WINDOW_SIZE} bytes, with fewer only at the
+     *            start of the stream), or null if not known.
+     * @return false if the output would be longer than the maximum output length.
+     * @throws DataFormatException
+     *             if the part is not valid (e.g. if startBit is not actually a block boundary).
+     */
+    boolean decode(final MappedFile mappedFile, final long pos, final long len, final long startBit,
+            final long stopBit, final byte[] window) throws IOException, DataFormatException {
+        resetDecoder();
+        setInput(mappedFile, pos, len, startBit);
+        setStopBit(stopBit);
+        if (window == null) {
+            for (int j = 0; j < WINDOW_SIZE; j++) {
+                out[j] = (char) (MARKER + j);
+            }
+            windowStart = 0;
+        } else {
+            windowStart = WINDOW_SIZE - window.length;
+            for (int j = 0; j < window.length; j++) {
+                out[windowStart + j] = (char) (window[j] & 0xff);
+            }
+        }
+        outPos = WINDOW_SIZE;
+        while (!isDecodingDone()) {
+            if (outPos >= out.length - OUTPUT_SLACK) {
+                if (outPos - WINDOW_SIZE >= maxOutputLen) {
+                    return false;
+                }
+                out = Arrays.copyOf(out,
+                        (int) Math.min((long) out.length * 2, (long) WINDOW_SIZE + maxOutputLen + OUTPUT_SLACK));
+            }
+            outLimit = out.length - OUTPUT_SLACK;
+            decodeBlocks();
+        }
+        return true;
+    }
+
+    /** The output symbols, starting at index {@link #getOutputStart()}. */
+    char[] getOutput() {
+        return out;
+    }
+
+    /** The number of bytes of memory used by the output buffer. */
+    long getOutputMemorySize() {
+        return 2L * out.length;
+    }
+
+    /** The index of the first output symbol. (The window precedes it.) */
+    int getOutputStart() {
+        return WINDOW_SIZE;
+    }
+
+    /** The number of output symbols. */
+    int getOutputLength() {
+        return outPos - WINDOW_SIZE;
+    }
+
+    /** Returns true if decoding reached the end of the final block of the stream. */
+    boolean reachedEndOfStream() {
+        return state == STATE_DONE;
+    }
+
+    /**
+     * Resolve len symbols of output starting at index off of the output buffer (which may be within the window)
+     * into bytes, given the bytes of the window, which may be null if the output contains no markers.
+     */
+    void resolve(final int off, final int len, final byte[] window, final byte[] dst, final int dstOff) {
+        for (int i = 0; i < len; i++) {
+            final var sym = out[off + i];
+            dst[dstOff + i] = sym < MARKER ? (byte) sym : window[sym - MARKER];
+        }
+    }
+
+    @Override
+    void copyStored() throws IOException, DataFormatException {
+        final var n = readStored(storedBuf, 0, Math.min(storedBuf.length, outLimit - outPos));
+        for (int i = 0; i < n; i++) {
+            out[outPos + i] = (char) (storedBuf[i] & 0xff);
+        }
+        outPos += n;
+    }
+
+    @Override
+    void decodeHuffman() throws IOException, DataFormatException {
+        final var out = this.out;
+        final var litlenTable = this.litlenTable;
+        final var distTable = this.distTable;
+        var in = this.in;
+        var inEnd = this.inEnd;
+        final var litlenMask = (1 << LITLEN_TABLE_BITS) - 1;
+        final var distMask = (1 << DIST_TABLE_BITS) - 1;
+        final var outLimit = this.outLimit;
+        final var windowStart = this.windowStart;
+        var bitBuf = this.bitBuf;
+        var bitCount = this.bitCount;
+        var inPos = this.inPos;
+        var outPos = this.outPos;
+        while (outPos < outLimit) {
+            // A length/distance pair needs at most 15 + 5 + 15 + 13 = 48 bits
+            if (bitCount < 48) {
+                if (inEnd - inPos >= 8) {
+                    bitBuf |= in.getLong(inPos) << bitCount;
+                    inPos += (63 - bitCount) >>> 3;
+                    bitCount |= 56;
+                } else {
+                    // Near the end of the input slice
+                    this.bitBuf = bitBuf;
+                    this.bitCount = bitCount;
+                    this.inPos = inPos;
+                    refillSlow();
+                    bitBuf = this.bitBuf;
+                    bitCount = this.bitCount;
+                    in = this.in;
+                    inPos = this.inPos;
+                    inEnd = this.inEnd;
+                }
+            }
+            var entry = litlenTable[(int) bitBuf & litlenMask];
+            if ((entry & F_LITERAL_PAIR) != 0) {
+                final var codeLen = entry & 0xf;
+                bitBuf >>>= codeLen;
+                bitCount -= codeLen;
+                out[outPos] = (char) ((entry >>> VALUE_SHIFT) & 0xff);
+                out[outPos + 1] = (char) (entry >>> (VALUE_SHIFT + 8));
+                outPos += 2;
+                continue;
+            }
+            if ((entry & F_SUBTABLE) != 0) {
+                bitBuf >>>= LITLEN_TABLE_BITS;
+                bitCount -= LITLEN_TABLE_BITS;
+                entry = litlenTable[(entry >>> VALUE_SHIFT)
+                        + ((int) bitBuf & ((1 << ((entry >>> 4) & 0xf)) - 1))];
+            }
+            final var codeLen = entry & 0xf;
+            bitBuf >>>= codeLen;
+            bitCount -= codeLen;
+            if ((entry & F_LITERAL) != 0) {
+                out[outPos++] = (char) (entry >>> VALUE_SHIFT);
+                continue;
+            }
+            if ((entry & F_BASE) == 0) {
+                if ((entry & F_END_OF_BLOCK) != 0) {
+                    this.bitBuf = bitBuf;
+                    this.bitCount = bitCount;
+                    this.inPos = inPos;
+                    this.outPos = outPos;
+                    endBlock();
+                    return;
+                }
+                throw new DataFormatException("Invalid literal/length code");
+            }
+            final var lenExtraBits = (entry >>> 4) & 0xf;
+            final var len = (entry >>> VALUE_SHIFT) + ((int) bitBuf & ((1 << lenExtraBits) - 1));
+            bitBuf >>>= lenExtraBits;
+            bitCount -= lenExtraBits;
+
+            var distEntry = distTable[(int) bitBuf & distMask];
+            if ((distEntry & F_SUBTABLE) != 0) {
+                bitBuf >>>= DIST_TABLE_BITS;
+                bitCount -= DIST_TABLE_BITS;
+                distEntry = distTable[(distEntry >>> VALUE_SHIFT)
+                        + ((int) bitBuf & ((1 << ((distEntry >>> 4) & 0xf)) - 1))];
+            }
+            if ((distEntry & F_BASE) == 0) {
+                throw new DataFormatException("Invalid distance code");
+            }
+            final var distCodeLen = distEntry & 0xf;
+            bitBuf >>>= distCodeLen;
+            bitCount -= distCodeLen;
+            final var distExtraBits = (distEntry >>> 4) & 0xf;
+            final var dist = (distEntry >>> VALUE_SHIFT) + ((int) bitBuf & ((1 << distExtraBits) - 1));
+            bitBuf >>>= distExtraBits;
+            bitCount -= distExtraBits;
+            if (dist > outPos - windowStart) {
+                throw new DataFormatException("Invalid distance too far back");
+            }
+
+            // Copy the match
+            final var src = outPos - dist;
+            if (dist >= len) {
+                System.arraycopy(out, src, out, outPos, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    out[outPos + i] = out[src + i];
+                }
+            }
+            outPos += len;
+        }
+        this.bitBuf = bitBuf;
+        this.bitCount = bitCount;
+        this.inPos = inPos;
+        this.outPos = outPos;
+    }
+}
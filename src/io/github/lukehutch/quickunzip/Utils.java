@@ -20,19 +20,26 @@
  */
 package io.github.lukehutch.quickunzip;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
 
 class Utils {
 
@@ -54,6 +61,12 @@ class Utils {
                     });
         }
 
+        /** A ThreadPoolExecutor that creates its threads with the given ThreadFactory. */
+        public AutoCloseableExecutorService(final ThreadFactory threadFactory, final int numThreads) {
+            super(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    threadFactory);
+        }
+
         /** Shut down thread pool on close(). */
         @Override
         public void close() {
@@ -97,143 +110,446 @@ class Utils {
     // -------------------------------------------------------------------------------------------------------------
 
     /**
-     * An AutoCloseable list of {@code Future<Void>} items that can be used in a try-with-resources block. When
-     * close() is called on this list, all items' {@code get()} methods are called, implementing a completion
-     * barrier.
+     * A resource that is created once per thread, the first time the thread calls get(), and then reused by that
+     * thread. All created instances are closed on close(). Unlike a ThreadLocal created inside each task, this
+     * gives each worker thread of a thread pool a single instance for all the tasks it runs.
      */
-    static class AutoCloseableFutureListWithCompletionBarrier extends ArrayList<Future<Void>>
-            implements AutoCloseable {
-        public AutoCloseableFutureListWithCompletionBarrier(final int size) {
-            super(size);
+    static abstract class AutoCloseablePerThreadResource<T extends AutoCloseable> implements AutoCloseable {
+        private final ThreadLocal<T> threadLocal = new ThreadLocal<>();
+        private final AutoCloseableConcurrentQueue<T> instances = new AutoCloseableConcurrentQueue<>();
+        private final AtomicInteger numCreated = new AtomicInteger();
+
+        /** Get the instance for the current thread, creating it if this thread has not called get() before. */
+        public T get() throws Exception {
+            var instance = threadLocal.get();
+            if (instance == null) {
+                instance = newInstance();
+                threadLocal.set(instance);
+                instances.add(instance);
+                numCreated.incrementAndGet();
+            }
+            return instance;
+        }
+
+        /** Construct a new instance. */
+        public abstract T newInstance() throws Exception;
+
+        /** The number of instances that have been created. */
+        public int getNumCreated() {
+            return numCreated.get();
         }
 
-        /** Completion barrier. */
+        /** Close all instances. */
         @Override
         public void close() {
-            for (final var future : this) {
+            instances.close();
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Get a ThreadFactory that creates virtual threads (named threadNamePrefix-0, threadNamePrefix-1, etc.), or
+     * null if virtual threads are not supported by this JVM (JDK 21 or later is required). The factory is looked up
+     * reflectively, so that this code still compiles and runs on JDK 11.
+     */
+    static ThreadFactory newVirtualThreadFactory(final String threadNamePrefix) {
+        try {
+            final var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final var builderClass = Class.forName("java.lang.Thread$Builder");
+            builderClass.getMethod("name", String.class, long.class).invoke(builder, threadNamePrefix + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (final ReflectiveOperationException | SecurityException e) {
+            // Not supported, or the preview API is not enabled
+            return null;
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Delete the output file of an entry that was not extracted completely, so that a later run without overwrite
+     * does not skip the entry as already extracted. If the file cannot be deleted, the exception is added to cause
+     * as a suppressed exception.
+     */
+    static void deletePartialFile(final Path path, final Throwable cause) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /**
+     * {@code sun.misc.Unsafe.invokeCleaner} and the Unsafe instance, looked up reflectively (it is not a supported
+     * API, but is available from JDK 9 on), or null if not available.
+     */
+    private static class Unmapper {
+        static final Object UNSAFE;
+        static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                final var unsafeClass = Class.forName("sun.misc.Unsafe");
+                final var theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafe = theUnsafe.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                unsafe = null;
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+    }
+
+    /** Returns true if {@link #unmap(MappedByteBuffer)} is supported by this JVM. */
+    static boolean canUnmap() {
+        return Unmapper.INVOKE_CLEANER != null;
+    }
+
+    /**
+     * Unmap a mapped buffer now, rather than whenever it is garbage collected, so that the address space (and, for
+     * a file being written, the dirty mapping) is not held until then. The buffer must not be accessed afterwards.
+     *
+     * @throws IOException
+     *             if unmapping is not supported by this JVM (see {@link #canUnmap()}), or failed.
+     */
+    static void unmap(final MappedByteBuffer buffer) throws IOException {
+        if (Unmapper.INVOKE_CLEANER == null) {
+            throw new IOException("Unmapping buffers is not supported by this JVM");
+        }
+        try {
+            Unmapper.INVOKE_CLEANER.invoke(Unmapper.UNSAFE, buffer);
+        } catch (final ReflectiveOperationException e) {
+            throw new IOException("Could not unmap buffer", e);
+        }
+    }
+
+    // -------------------------------------------------------------------------------------------------------------
+
+    /** A task that is run once for each index in a range. */
+    @FunctionalInterface
+    interface IndexedTask {
+        void run(int idx) throws Exception;
+    }
+
+    /**
+     * Run the task for each index in {@code [0, numIndices)}, on the calling thread and on up to numHelpers threads
+     * of the executor. Each index is claimed by whichever thread gets to it first, and the calling thread keeps
+     * claiming indices until there are none left, then waits only for indices already claimed by helpers, so this
+     * completes even if called from a task of the same (fully busy) fixed-size executor.
+     *
+     * @throws Exception
+     *             the first exception thrown by the task (after all claimed indices have completed).
+     */
+    static void parallelFor(final ExecutorService executor, final int numHelpers, final int numIndices,
+            final IndexedTask task) throws Exception {
+        final var nextIdx = new AtomicInteger();
+        final var completed = new CountDownLatch(numIndices);
+        final var firstException = new AtomicReference<Exception>();
+        final Runnable worker = () -> {
+            for (int idx; (idx = nextIdx.getAndIncrement()) < numIndices;) {
                 try {
-                    future.get();
+                    task.run(idx);
                 } catch (final Exception e) {
+                    firstException.compareAndSet(null, e);
+                } finally {
+                    completed.countDown();
                 }
             }
+        };
+        for (int i = 0, n = Math.min(numHelpers, numIndices - 1); i < n; i++) {
+            try {
+                executor.execute(worker);
+            } catch (final RejectedExecutionException e) {
+                // Executor is shutting down -- the calling thread will do the work
+                break;
+            }
+        }
+        worker.run();
+        completed.await();
+        if (firstException.get() != null) {
+            throw firstException.get();
         }
     }
 
     // -------------------------------------------------------------------------------------------------------------
 
-    /** A map from keys to singleton instances. */
-    static abstract class SingletonMap<K, V> {
-        private final ConcurrentMap<K, SingletonHolder<V>> map = new ConcurrentHashMap<>();
-        private final ConcurrentLinkedQueue<SingletonHolder<V>> singletonHolderRecycler = new ConcurrentLinkedQueue<>();
+    /**
+     * Runs a task for each index in {@code [0, numIndices)} on a fixed number of worker loops, without allocating
+     * anything or taking any lock per index.
+     *
+     * <p>
+     * Workers claim batches of consecutive indices from a shared atomic cursor. The batch size is a fraction of the
+     * remaining indices divided by the number of workers (guided self-scheduling), so batches shrink towards the end,
+     * and if the indices are ordered by decreasing cost, the expensive indices at the start are claimed one at a
+     * time. Each worker publishes the unprocessed part of its batch as a range packed into an atomic long, and runs
+     * indices from the front of the range. Once the cursor is exhausted, an idle worker steals the back half of the
+     * largest remaining range of another worker, so that no worker sits idle while another has a backlog.
+     *
+     * <p>
+     * The indices can optionally be divided into groups of consecutive indices that should run on the same worker,
+     * in order (e.g. the entries of one directory). Batches are then extended to the end of a group, and steals
+     * split ranges at group boundaries, unless a group is larger than {@link #MAX_GROUP_SIZE}. A range that is a
+     * single group is left to its worker, and the next largest range is split instead. Indices can also be
+     * given weights (e.g. estimated costs), so that batches of light indices are claimed many at a time.
+     *
+     * <p>
+     * The number of workers that claim new batches can be limited while the tasks run (see
+     * {@link #setConcurrencyLimit(int)}). Workers above the limit finish their current batch (other workers can
+     * steal from it), then park until the limit is raised, or until all indices have been claimed.
+     */
+    static class WorkStealingScheduler {
+        private final int numWorkers;
+        private final int numIndices;
+        private final IndexedTask task;
 
-        /**
-         * Wrapper to allow an object instance to be put into a ConcurrentHashMap using putIfAbsent() without
-         * requiring the instance to be initialized first, so that putIfAbsent can be performed without wrapping it
-         * with a synchronized lock, and so that initialization work is not wasted if an object is already in the
-         * map for the key.
-         */
-        private static class SingletonHolder<V> {
-            private V singleton;
-            private final CountDownLatch initialized = new CountDownLatch(1);
+        /** Returns true if an index starts a new group, or null if every index starts a group. */
+        private final IntPredicate isGroupStart;
 
-            public void set(final V singleton) {
-                this.singleton = singleton;
-                initialized.countDown();
-            }
+        /** The weight of each index, or null if batches are not sized by weight. */
+        private IntToLongFunction indexWeight;
 
-            public V get() throws InterruptedException {
-                initialized.await();
-                return singleton;
-            }
+        /** The minimum total weight of a batch claimed from the cursor. */
+        private long minBatchWeight;
+
+        /** The number of workers that may claim new batches. */
+        private volatile int concurrencyLimit = Integer.MAX_VALUE;
+
+        /** How long a worker above the concurrency limit parks before checking the limit again. */
+        private static final long PARK_NANOS = 10_000_000L;
+
+        /** The next index that has not been claimed by any worker. */
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        /** The range of claimed but unprocessed indices of each worker, as {@code (next << 32) | end}. */
+        private final AtomicLongArray ranges;
+
+        private final CountDownLatch workersFinished;
+        private final AtomicInteger numFailed = new AtomicInteger();
+        private final AtomicReference<Exception> firstException = new AtomicReference<>();
+
+        /** The divisor of the remaining indices per worker that gives the batch size. */
+        private static final int BATCH_DIVISOR = 4;
+
+        /** Groups larger than this may be split between workers. */
+        static final int MAX_GROUP_SIZE = 1024;
+
+        WorkStealingScheduler(final int numWorkers, final int numIndices, final IndexedTask task) {
+            this(numWorkers, numIndices, task, null);
         }
 
         /**
-         * Initialize a value object for this key and return true, if this is the first time this key has been seen,
-         * otherwise return false.
-         *
-         * @throws Exception
-         *             if newInstance(key) throws an exception.
-         * @throws IllegalArgumentException
-         *             if newInstance(key) returns null.
+         * Create a scheduler for indices divided into groups, where isGroupStart returns true for the first index
+         * of each group.
          */
-        public boolean createSingleton(final K key) throws Exception {
-            SingletonHolder<V> newSingletonHolder = singletonHolderRecycler.poll();
-            if (newSingletonHolder == null) {
-                newSingletonHolder = new SingletonHolder<>();
-            }
-            final SingletonHolder<V> oldSingletonHolder = map.putIfAbsent(key, newSingletonHolder);
-            if (oldSingletonHolder == null) {
-                // Initialize newSingletonHolder with new instance of value.
+        WorkStealingScheduler(final int numWorkers, final int numIndices, final IndexedTask task,
+                final IntPredicate isGroupStart) {
+            this.numWorkers = Math.max(1, numWorkers);
+            this.numIndices = numIndices;
+            this.task = task;
+            this.isGroupStart = isGroupStart;
+            this.ranges = new AtomicLongArray(this.numWorkers);
+            this.workersFinished = new CountDownLatch(this.numWorkers);
+        }
 
-                V newInstance = null;
-                try {
-                    newInstance = newInstance(key);
-                    if (newInstance == null) {
-                        throw new IllegalArgumentException("newInstance(key) returned null");
-                    }
-                } finally {
-                    // Have to call .set() even if an exception is thrown by newInstance(), or if newInstance is null,
-                    // since .set() calls initialized.countDown(). Otherwise threads that call .get() can end up waiting
-                    // forever.
-                    newSingletonHolder.set(newInstance);
-                }
-                return true;
-            } else {
-                // There was already a singleton in the map for this key
-                singletonHolderRecycler.add(newSingletonHolder);
-                return false;
-            }
+        /**
+         * Make batches claimed from the cursor at least minBatchWeight in total weight (up to
+         * {@link #MAX_GROUP_SIZE} indices), so that a worker claims many light indices at once, rather than claiming
+         * them one at a time towards the end. Must be called before {@link #run(ExecutorService)}.
+         */
+        void setMinBatchWeight(final IntToLongFunction indexWeight, final long minBatchWeight) {
+            this.indexWeight = indexWeight;
+            this.minBatchWeight = minBatchWeight;
         }
 
         /**
-         * Check if the given key is in the map, and if so, return it. If not, create a singleton value for that
-         * key, and return the created value.
-         *
-         * @throws Exception
-         *             if newInstance(key) throws an exception.
-         * @throws IllegalArgumentException
-         *             if newInstance(key) returns null.
+         * Limit the number of workers that claim new batches to workers {@code [0, concurrencyLimit)} (at least
+         * the calling thread). May be called at any time.
          */
-        public V getOrCreateSingleton(final K key) throws Exception {
-            final V existingSingleton = get(key);
-            if (existingSingleton != null) {
-                return existingSingleton;
-            } else {
-                // Create singleton (in case of race condition, only one thread will cause a new singleton to be created
-                // for this key)
-                createSingleton(key);
-                // Look up newly-created singleton, and get the created value
-                return get(key);
-            }
+        void setConcurrencyLimit(final int concurrencyLimit) {
+            this.concurrencyLimit = Math.max(1, concurrencyLimit);
         }
 
-        /** Construct a new singleton instance. */
-        public abstract V newInstance(K key) throws Exception;
+        /** The number of workers that may claim new batches. */
+        int getConcurrencyLimit() {
+            return Math.min(numWorkers, concurrencyLimit);
+        }
+
+        /** Returns true once all indices have been claimed from the cursor. */
+        boolean isFullyClaimed() {
+            return cursor.get() >= numIndices;
+        }
+
+        private static long range(final int next, final int end) {
+            return ((long) next << 32) | end;
+        }
+
+        private static int next(final long range) {
+            return (int) (range >>> 32);
+        }
+
+        private static int end(final long range) {
+            return (int) range;
+        }
 
         /**
-         * Get the singleton for a given key.
-         *
-         * @return the new singleton instance, initialized by calling newInstance, or null if createSingleton() or
-         *         getOrCreateSingleton() has not yet been called. Also returns null if newInstance() threw an
-         *         exception or returned null while calling either of these methods.
+         * Run the tasks, using the calling thread and {@code numWorkers - 1} tasks submitted to the executor, and
+         * wait for all the tasks to complete. Exceptions thrown by tasks are counted, and do not stop other tasks
+         * from running.
          */
-        public V get(final K key) throws InterruptedException {
-            final SingletonHolder<V> singletonHolder = map.get(key);
-            return singletonHolder == null ? null : singletonHolder.get();
+        void run(final ExecutorService executor) throws InterruptedException {
+            for (int i = 1; i < numWorkers; i++) {
+                final var workerIdx = i;
+                executor.execute(() -> runWorker(workerIdx));
+            }
+            runWorker(0);
+            workersFinished.await();
+        }
+
+        /** The number of tasks that threw an exception. */
+        int getNumFailed() {
+            return numFailed.get();
+        }
+
+        /** The first exception thrown by a task, or null if none. */
+        Exception getFirstException() {
+            return firstException.get();
+        }
+
+        /** The loop of one worker: run claimed indices until there are none left to claim or steal. */
+        private void runWorker(final int workerIdx) {
+            try {
+                for (int idx; (idx = nextIndex(workerIdx)) >= 0;) {
+                    try {
+                        task.run(idx);
+                    } catch (final Exception e) {
+                        numFailed.incrementAndGet();
+                        firstException.compareAndSet(null, e);
+                    }
+                }
+            } finally {
+                workersFinished.countDown();
+            }
         }
 
-        /** Get all singletons in the map. */
-        public List<V> values() throws InterruptedException {
-            final List<V> entries = new ArrayList<>(map.size());
-            for (final Entry<K, SingletonHolder<V>> ent : map.entrySet()) {
-                entries.add(ent.getValue().get());
+        /** Get the next index for a worker to run, or -1 if there are none left. */
+        private int nextIndex(final int workerIdx) {
+            // Take the next index from the front of this worker's own range
+            for (;;) {
+                final var range = ranges.get(workerIdx);
+                final var next = next(range);
+                if (next >= end(range)) {
+                    break;
+                }
+                if (ranges.compareAndSet(workerIdx, range, range(next + 1, end(range)))) {
+                    return next;
+                }
+            }
+            // Park while this worker is above the concurrency limit
+            while (workerIdx >= concurrencyLimit) {
+                if (cursor.get() >= numIndices) {
+                    // Leave any remaining work to the active workers
+                    return -1;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            // Claim a new batch from the cursor
+            for (;;) {
+                final var start = cursor.get();
+                if (start >= numIndices) {
+                    break;
+                }
+                final var batchSize = Math.max(1, (numIndices - start) / (numWorkers * BATCH_DIVISOR));
+                var end = start + batchSize;
+                if (indexWeight != null) {
+                    // Extend the batch until it has the minimum weight
+                    long weight = 0;
+                    for (int i = start; i < end && weight < minBatchWeight; i++) {
+                        weight += indexWeight.applyAsLong(i);
+                    }
+                    for (final var maxEnd = Math.min(numIndices, start + MAX_GROUP_SIZE); end < maxEnd
+                            && weight < minBatchWeight; end++) {
+                        weight += indexWeight.applyAsLong(end);
+                    }
+                }
+                if (isGroupStart != null) {
+                    // Extend the batch to the end of the last group in it
+                    for (final var maxEnd = Math.min(numIndices, end + MAX_GROUP_SIZE); end < maxEnd
+                            && !isGroupStart.test(end);) {
+                        end++;
+                    }
+                }
+                if (cursor.compareAndSet(start, end)) {
+                    // The own range is empty, so no other worker can be modifying it
+                    ranges.set(workerIdx, range(start + 1, end));
+                    return start;
+                }
+            }
+            // Steal the back half of the largest remaining range of another worker, trying the next largest range
+            // if a range cannot be split
+            boolean[] unsplittable = null;
+            for (;;) {
+                var victim = -1;
+                var victimRange = 0L;
+                var victimRemaining = 0;
+                for (int i = 0; i < numWorkers; i++) {
+                    final var range = ranges.get(i);
+                    final var remaining = end(range) - next(range);
+                    if (i != workerIdx && remaining > victimRemaining
+                            && (unsplittable == null || !unsplittable[i])) {
+                        victim = i;
+                        victimRange = range;
+                        victimRemaining = remaining;
+                    }
+                }
+                if (victim < 0) {
+                    return -1;
+                }
+                final var mid = splitPoint(next(victimRange), end(victimRange));
+                if (mid < 0) {
+                    // The remaining range is one group, which is left to the victim
+                    if (unsplittable == null) {
+                        unsplittable = new boolean[numWorkers];
+                    }
+                    unsplittable[victim] = true;
+                    continue;
+                }
+                if (ranges.compareAndSet(victim, victimRange, range(next(victimRange), mid))) {
+                    ranges.set(workerIdx, range(mid + 1, end(victimRange)));
+                    return mid;
+                }
             }
-            return entries;
         }
 
-        /** Clear the map. */
-        public void clear() {
-            map.clear();
+        /**
+         * Find where to split the range {@code [next, end)} for a steal: the group boundary closest to the middle,
+         * or the middle if there is no group boundary and the range is larger than {@link #MAX_GROUP_SIZE}, or -1
+         * if the range should not be split.
+         */
+        private int splitPoint(final int next, final int end) {
+            final var mid = next + (end - next) / 2;
+            if (isGroupStart == null) {
+                return mid;
+            }
+            for (int i = 0; mid + i < end || mid - i > next; i++) {
+                if (mid + i < end && isGroupStart.test(mid + i)) {
+                    return mid + i;
+                }
+                if (mid - i > next && isGroupStart.test(mid - i)) {
+                    return mid - i;
+                }
+                if (i >= MAX_GROUP_SIZE) {
+                    break;
+                }
+            }
+            return end - next > MAX_GROUP_SIZE ? mid : -1;
         }
     }
 }
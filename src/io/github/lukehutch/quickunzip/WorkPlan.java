@@ -0,0 +1,340 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A schedule for extracting the entries of a zipfile. The work is split into units (an entry, or a chunk of a
+ * large stored entry that is copied in parallel), the cost of each unit is estimated from the sizes and
+ * compression method in the central directory, and the most expensive units are run first, in order of decreasing
+ * cost (longest processing time first, or LPT). Since worker threads take units in order, the largest units start
+ * first, and small units fill in the gaps at the end, rather than a large entry near the end of the central
+ * directory starting late and finishing alone. LPT list scheduling has a makespan within 4/3 of optimal.
+ *
+ * <p>
+ * To keep the memory used by the schedule constant, however many entries there are, only the (at most)
+ * {@value #MAX_HEAD_SIZE} most expensive units are sorted, to form the head of the schedule. The head is followed
+ * by a tail of one unit per entry, in central directory order (which is usually the order of entries in the
+ * zipfile), which covers whatever part of the entry is not in the head. Since the tail is made of the cheapest
+ * units, ordering it by cost would make little difference to the makespan.
+ *
+ * <p>
+ * The entries of the tail are grouped by parent directory (see {@link #isGroupStart(int)}), so that a group can
+ * be extracted by one worker, rather than all workers creating files in the same directory at the same time and
+ * contending for the lock on the directory in the kernel. Zip writers store the entries of a directory together,
+ * so groups are runs of consecutive entries in central directory order, which also keeps files being created in
+ * the order they were stored.
+ */
+class WorkPlan {
+    /** The maximum number of units in the head of the schedule. */
+    static final int MAX_HEAD_SIZE = 4096;
+
+    /** The estimated fixed cost of extracting a file entry (creating, opening and closing the file), in ns. */
+    private static final long FILE_COST_NS = 30_000;
+
+    /** The estimated cost of creating a directory, in ns. */
+    private static final long DIR_COST_NS = 10_000;
+
+    /** The estimated cost of copying a byte of a stored entry, in ns (i.e. about 1GB/sec). */
+    private static final double STORED_BYTE_COST_NS = 1.0;
+
+    /** The estimated cost of reading a byte of compressed data, in ns. */
+    private static final double COMPRESSED_BYTE_COST_NS = 1.0;
+
+    /** The estimated cost of inflating and writing a byte of a deflated entry, in ns (i.e. about 300MB/sec). */
+    private static final double INFLATED_BYTE_COST_NS = 3.0;
+
+    private final ConcurrentZipReader zipReader;
+    private final int numThreads;
+    private final long chunkedCopyMinSize;
+    private final long chunkSize;
+
+    /** The units of the head, in schedule order, as {@code (entryIdx << 32) | (chunkIdx + 1)}. */
+    private final long[] headUnits;
+
+    /** The units of the head, sorted, for lookup. */
+    private final long[] sortedHeadUnits;
+
+    /** The total estimated cost of all units, in ns. */
+    private final long totalCost;
+
+    /** The estimated cost of the largest unit, in ns. */
+    private final long maxUnitCost;
+
+    /** The estimated time to run all units on numThreads threads, in ns. */
+    private final long makespan;
+
+    /**
+     * Plan the extraction of all entries of a zipfile on numThreads threads. Stored entries of at least
+     * chunkedCopyMinSize bytes are split into chunks of chunkSize bytes.
+     */
+    WorkPlan(final ConcurrentZipReader zipReader, final int numThreads, final long chunkedCopyMinSize,
+            final long chunkSize) throws IOException {
+        this.zipReader = zipReader;
+        this.numThreads = Math.max(1, numThreads);
+        this.chunkedCopyMinSize = chunkedCopyMinSize;
+        this.chunkSize = chunkSize;
+        final var numEntries = zipReader.size();
+
+        // Select the most expensive units, using a min-heap of their costs
+        final var heapCosts = new long[MAX_HEAD_SIZE];
+        final var heapUnits = new long[MAX_HEAD_SIZE];
+        var heapSize = 0;
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < numEntries; i++) {
+            final var numChunks = getNumChunks(i);
+            for (int j = numChunks == 0 ? -1 : 0; j < numChunks; j++) {
+                final var cost = estimateCost(i, j);
+                total += cost;
+                max = Math.max(max, cost);
+                final var unit = unit(i, j);
+                if (heapSize < MAX_HEAD_SIZE) {
+                    heapSize++;
+                    siftUp(heapCosts, heapUnits, heapSize - 1, cost, unit);
+                } else if (cost > heapCosts[0]) {
+                    siftDown(heapCosts, heapUnits, heapSize, cost, unit);
+                }
+            }
+        }
+
+        // Sort the head by decreasing cost. Each sort key holds the cost in microseconds in the high 32 bits, and
+        // the inverted heap index in the low 32 bits.
+        final var sortKeys = new long[heapSize];
+        for (int i = 0; i < heapSize; i++) {
+            sortKeys[i] = (Math.min(heapCosts[i] / 1000, Integer.MAX_VALUE) << 32) | (Integer.MAX_VALUE - i);
+        }
+        Arrays.sort(sortKeys);
+        headUnits = new long[heapSize];
+        for (int i = 0; i < heapSize; i++) {
+            headUnits[i] = heapUnits[Integer.MAX_VALUE - (int) sortKeys[heapSize - 1 - i]];
+        }
+        // Units of equal cost keep central directory order
+        for (int i = 0; i < heapSize;) {
+            var j = i + 1;
+            while (j < heapSize && sortKeys[heapSize - 1 - j] >>> 32 == sortKeys[heapSize - 1 - i] >>> 32) {
+                j++;
+            }
+            Arrays.sort(headUnits, i, j);
+            i = j;
+        }
+        sortedHeadUnits = headUnits.clone();
+        Arrays.sort(sortedHeadUnits);
+
+        // Simulate list scheduling of the head then the tail: each unit goes to the least loaded thread
+        final var threadLoads = new long[this.numThreads];
+        for (final var unit : headUnits) {
+            addToLeastLoaded(threadLoads, estimateCost((int) (unit >>> 32), (int) unit - 1));
+        }
+        for (int i = 0; i < numEntries; i++) {
+            final var numChunks = getNumChunks(i);
+            long tailCost = 0;
+            for (int j = numChunks == 0 ? -1 : 0; j < numChunks; j++) {
+                if (!isInHead(i, j)) {
+                    tailCost += estimateCost(i, j);
+                }
+            }
+            if (tailCost > 0) {
+                addToLeastLoaded(threadLoads, tailCost);
+            }
+        }
+        var maxLoad = 0L;
+        for (final var load : threadLoads) {
+            maxLoad = Math.max(maxLoad, load);
+        }
+        totalCost = total;
+        maxUnitCost = max;
+        makespan = maxLoad;
+    }
+
+    private static long unit(final int entryIdx, final int chunkIdx) {
+        return ((long) entryIdx << 32) | (chunkIdx + 1);
+    }
+
+    /** Insert into a min-heap with an empty slot at index i, at the end of the heap. */
+    private static void siftUp(final long[] costs, final long[] units, final int idx, final long cost,
+            final long unit) {
+        var i = idx;
+        while (i > 0) {
+            final var parent = (i - 1) / 2;
+            if (costs[parent] <= cost) {
+                break;
+            }
+            costs[i] = costs[parent];
+            units[i] = units[parent];
+            i = parent;
+        }
+        costs[i] = cost;
+        units[i] = unit;
+    }
+
+    /** Replace the root of a min-heap. */
+    private static void siftDown(final long[] costs, final long[] units, final int size, final long cost,
+            final long unit) {
+        var i = 0;
+        for (;;) {
+            final var left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            final var right = left + 1;
+            final var child = right < size && costs[right] < costs[left] ? right : left;
+            if (costs[child] >= cost) {
+                break;
+            }
+            costs[i] = costs[child];
+            units[i] = units[child];
+            i = child;
+        }
+        costs[i] = cost;
+        units[i] = unit;
+    }
+
+    /**
+     * The number of chunks a stored entry is copied in, or 0 if the entry is not copied in chunks (it is not
+     * stored, or it is a directory, or it is smaller than the minimum size for chunked copying).
+     */
+    int getNumChunks(final int entryIdx) throws IOException {
+        final var size = zipReader.getSize(entryIdx);
+        if (zipReader.getMethod(entryIdx) != CentralDirectory.STORED || size < chunkedCopyMinSize
+                || zipReader.isDirectory(entryIdx)) {
+            return 0;
+        }
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /** Estimate the cost of extracting an entry (if chunkIdx is -1) or a chunk of an entry, in ns. */
+    private long estimateCost(final int entryIdx, final int chunkIdx) throws IOException {
+        if (chunkIdx >= 0) {
+            return FILE_COST_NS + (long) (STORED_BYTE_COST_NS
+                    * Math.min(chunkSize, zipReader.getSize(entryIdx) - chunkIdx * chunkSize));
+        }
+        if (zipReader.isDirectory(entryIdx)) {
+            return DIR_COST_NS;
+        }
+        switch (zipReader.getMethod(entryIdx)) {
+        case CentralDirectory.STORED:
+            return FILE_COST_NS + (long) (STORED_BYTE_COST_NS * zipReader.getSize(entryIdx));
+        case CentralDirectory.DEFLATED:
+            return FILE_COST_NS + (long) (COMPRESSED_BYTE_COST_NS * zipReader.getCompressedSize(entryIdx)
+                    + INFLATED_BYTE_COST_NS * zipReader.getSize(entryIdx));
+        default:
+            // Unsupported -- the entry is skipped
+            return FILE_COST_NS;
+        }
+    }
+
+    /** Add a cost to the least loaded thread, where threadLoads is a binary min-heap. */
+    private static void addToLeastLoaded(final long[] threadLoads, final long cost) {
+        // The root of the heap is the least loaded thread -- increase its load, then sift it down
+        final var load = threadLoads[0] + cost;
+        var i = 0;
+        for (;;) {
+            final var left = 2 * i + 1;
+            if (left >= threadLoads.length) {
+                break;
+            }
+            final var right = left + 1;
+            final var child = right < threadLoads.length && threadLoads[right] < threadLoads[left] ? right : left;
+            if (threadLoads[child] >= load) {
+                break;
+            }
+            threadLoads[i] = threadLoads[child];
+            i = child;
+        }
+        threadLoads[i] = load;
+    }
+
+    /** The number of units: the units of the head, followed by one unit per entry. */
+    int size() {
+        return headUnits.length + zipReader.size();
+    }
+
+    /** Returns true if the i-th unit is in the head of the schedule. */
+    boolean isHeadUnit(final int i) {
+        return i < headUnits.length;
+    }
+
+    /** The entry index of the i-th unit, in schedule order. */
+    int getEntryIdx(final int i) {
+        return i < headUnits.length ? (int) (headUnits[i] >>> 32) : i - headUnits.length;
+    }
+
+    /**
+     * The chunk index of the i-th unit, in schedule order, or -1 if the unit is a whole entry (or, for a unit of
+     * the tail, the part of the entry that is not in the head).
+     */
+    int getChunkIdx(final int i) {
+        return i < headUnits.length ? (int) headUnits[i] - 1 : -1;
+    }
+
+    /**
+     * Returns true if the i-th unit starts a new group of units that should be extracted by the same worker, in
+     * order: each unit of the head is its own group, and units of the tail are grouped by parent directory.
+     */
+    boolean isGroupStart(final int i) {
+        if (i <= headUnits.length) {
+            return true;
+        }
+        final var entryIdx = i - headUnits.length;
+        try {
+            return !zipReader.hasSameParentDir(entryIdx - 1, entryIdx);
+        } catch (final IOException e) {
+            // The error is reported when the entry is extracted
+            return true;
+        }
+    }
+
+    /** The estimated cost of the i-th unit, in ns. */
+    long getEstimatedCost(final int i) {
+        try {
+            return estimateCost(getEntryIdx(i), getChunkIdx(i));
+        } catch (final IOException e) {
+            return FILE_COST_NS;
+        }
+    }
+
+    /** Returns true if the given entry (if chunkIdx is -1) or chunk of an entry is in the head. */
+    boolean isInHead(final int entryIdx, final int chunkIdx) {
+        return Arrays.binarySearch(sortedHeadUnits, unit(entryIdx, chunkIdx)) >= 0;
+    }
+
+    /** The estimated time to run all units in schedule order on the planned number of threads, in ns. */
+    long getEstimatedMakespan() {
+        return makespan;
+    }
+
+    /**
+     * A summary of the plan: the number of units, and the estimated makespan, compared with the serial time and
+     * the lower bound (the larger of the largest unit and a perfect division of the work between threads).
+     */
+    @Override
+    public String toString() {
+        final var lowerBound = Math.max(maxUnitCost, (totalCost + numThreads - 1) / numThreads);
+        return String.format(
+                "Scheduled %d work units largest-first, then %d entries in order, on %d threads: "
+                        + "estimated makespan %.1f ms (serial %.1f ms, lower bound %.1f ms)",
+                headUnits.length, zipReader.size(), numThreads, makespan / 1e6, totalCost / 1e6,
+                lowerBound / 1e6);
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2018 Luke Hutchison
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO
+ * EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN
+ * AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package io.github.lukehutch.quickunzip;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.github.lukehutch.quickunzip.Utils.AutoCloseableExecutorService;
+
+/**
+ * The write stage of a two-stage extraction pipeline. Inflate threads fill buffers taken from a fixed pool, and
+ * hand them off through a bounded ring buffer of write requests to a separately sized pool of writer threads,
+ * which create the output files, write the buffers at their file positions, and return the buffers to the pool.
+ * An inflate thread that gets ahead of the writers blocks until a buffer is free, and a writer that is blocked on
+ * slow storage does not hold up decompression of other entries while buffers are available, so the CPU
+ * parallelism (the number of inflate threads) and the I/O queue depth (the number of writer threads and buffers)
+ * can be tuned independently.
+ *
+ * <p>
+ * The time inflate threads spend waiting for a free buffer, and the time writer threads spend writing, are
+ * recorded, to report the utilization of each stage.
+ */
+class WritePipeline implements AutoCloseable {
+    /** The size of each buffer. */
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    /** A write request. */
+    @FunctionalInterface
+    private interface WriteTask {
+        void run() throws Exception;
+    }
+
+    /** Creates the output file of an entry, or returns null if the entry should not be extracted. */
+    @FunctionalInterface
+    interface FileCreator {
+        FileChannel newFile(int entryIdx, Path path) throws IOException;
+    }
+
+    /** Tells a writer thread to exit. */
+    private static final WriteTask EXIT = () -> {
+    };
+
+    private final int numWriters;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private final MemoryBudget memoryBudget;
+    private final FileCreator fileCreator;
+    private final ArrayBlockingQueue<WriteTask> writeTasks;
+    private final AutoCloseableExecutorService writerExecutor;
+    private final CountDownLatch writersFinished;
+    private final long startTimeNanos = System.nanoTime();
+    private long endTimeNanos;
+    private boolean closed;
+
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicInteger numFailed = new AtomicInteger();
+    private final AtomicReference<Exception> firstException = new AtomicReference<>();
+
+    /**
+     * Start numWriters writer threads, sharing queueDepth buffers (at least one per writer thread, but no more than
+     * fit in the memory budget) of {@link #BUFFER_SIZE} bytes. Each buffer is charged to the memory budget while it
+     * holds data. Output files are created by fileCreator, on the writer threads.
+     */
+    WritePipeline(final int numWriters, final int queueDepth, final MemoryBudget memoryBudget,
+            final FileCreator fileCreator) {
+        this.numWriters = Math.max(1, numWriters);
+        this.memoryBudget = memoryBudget;
+        this.fileCreator = fileCreator;
+        final var numBuffers = (int) Math.max(1,
+                Math.min(Math.max(this.numWriters, queueDepth), memoryBudget.getLimit() / BUFFER_SIZE));
+        freeBuffers = new ArrayBlockingQueue<>(numBuffers);
+        for (int i = 0; i < numBuffers; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        // There can be at most one write request per buffer, plus one per file that is flushed or closed
+        writeTasks = new ArrayBlockingQueue<>(2 * numBuffers);
+        writersFinished = new CountDownLatch(this.numWriters);
+        writerExecutor = new AutoCloseableExecutorService("QuickUnzip-writer", this.numWriters);
+        for (int i = 0; i < this.numWriters; i++) {
+            writerExecutor.execute(this::runWriter);
+        }
+    }
+
+    /** The loop of a writer thread: run write requests until told to exit. */
+    private void runWriter() {
+        try {
+            for (;;) {
+                final var task = writeTasks.take();
+                if (task == EXIT) {
+                    break;
+                }
+                final var startTime = System.nanoTime();
+                try {
+                    task.run();
+                } catch (final Exception e) {
+                    numFailed.incrementAndGet();
+                    firstException.compareAndSet(null, e);
+                } finally {
+                    writeNanos.addAndGet(System.nanoTime() - startTime);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writersFinished.countDown();
+        }
+    }
+
+    /** Queue a write request, blocking if the queue is full. */
+    private void submit(final WriteTask task) throws InterruptedIOException {
+        try {
+            writeTasks.put(task);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing write");
+        }
+    }
+
+    /** Take a free buffer, blocking until one is available, and within the memory budget. */
+    private ByteBuffer takeBuffer() throws InterruptedIOException {
+        final var budgetStartTime = System.nanoTime();
+        memoryBudget.acquire(BUFFER_SIZE);
+        waitNanos.addAndGet(System.nanoTime() - budgetStartTime);
+        var buf = freeBuffers.poll();
+        if (buf == null) {
+            final var startTime = System.nanoTime();
+            try {
+                buf = freeBuffers.take();
+            } catch (final InterruptedException e) {
+                memoryBudget.release(BUFFER_SIZE);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a write buffer");
+            } finally {
+                waitNanos.addAndGet(System.nanoTime() - startTime);
+            }
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /** Return a buffer taken with {@link #takeBuffer()} to the pool, releasing it from the memory budget. */
+    private void returnBuffer(final ByteBuffer buf) {
+        freeBuffers.add(buf);
+        memoryBudget.release(BUFFER_SIZE);
+    }
+
+    /**
+     * Create a file, and copy a stored entry to it with
+     * {@link ConcurrentZipReader#transferTo(int, WritableByteChannel)}, on a writer thread.
+     */
+    void transferTo(final ConcurrentZipReader zipReader, final int entryIdx, final Path path)
+            throws InterruptedIOException {
+        submit(() -> {
+            final var outputChannel = fileCreator.newFile(entryIdx, path);
+            if (outputChannel != null) {
+                try (outputChannel) {
+                    bytesWritten.addAndGet(zipReader.transferTo(entryIdx, outputChannel));
+                } catch (final Throwable e) {
+                    Utils.deletePartialFile(path, e);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Open a channel that writes a new file through the pipeline. Data written to the channel is copied into
+     * pipeline buffers, and the file is created and written by the writer threads. The channel must be closed by
+     * the caller, and the file is closed once the last of its buffers has been written. (If the file is not
+     * created, e.g. because it already exists, the data written to the channel is discarded.)
+     */
+    OutputFile newOutputFile(final int entryIdx, final Path path) {
+        return new OutputFile(entryIdx, path);
+    }
+
+    /**
+     * A new file that is written by the writer threads. If the data of the file cannot be produced, the file is
+     * abandoned with {@link #abort()}, and if any write fails, the file is deleted once it is closed, so that a
+     * partly written file is not left behind.
+     */
+    class OutputFile implements WritableByteChannel {
+        private final int entryIdx;
+        private final Path path;
+
+        /** The buffer being filled, or null. */
+        private ByteBuffer buf;
+
+        /** The file position of the start of buf. */
+        private long bufPos;
+
+        /** The number of queued buffers that have not been written, plus one until the channel is closed. */
+        private final AtomicInteger numPending = new AtomicInteger(1);
+
+        /** The output channel, opened by the first writer thread to write to the file, or null if not created. */
+        private FileChannel fileChannel;
+        private boolean created;
+
+        /** The first exception thrown by a writer thread for this file. */
+        private volatile IOException writeException;
+
+        /** True if the file was abandoned by the caller. */
+        private volatile boolean aborted;
+
+        private boolean closed;
+
+        OutputFile(final int entryIdx, final Path path) {
+            this.entryIdx = entryIdx;
+            this.path = path;
+        }
+
+        /**
+         * Create the file the first time it is written, or closed if it is empty. Returns null if the file was not
+         * created.
+         */
+        private synchronized FileChannel getFileChannel() throws IOException {
+            if (!created) {
+                created = true;
+                fileChannel = fileCreator.newFile(entryIdx, path);
+            }
+            return fileChannel;
+        }
+
+        /** Queue the buffer being filled, if it is not empty. */
+        private void flush() throws IOException {
+            if (buf != null && buf.position() > 0) {
+                final var filledBuf = buf;
+                final var filePos = bufPos;
+                buf = null;
+                bufPos += filledBuf.position();
+                filledBuf.flip();
+                numPending.incrementAndGet();
+                submit(() -> {
+                    try {
+                        if (writeException == null && !aborted) {
+                            final var channel = getFileChannel();
+                            if (channel != null) {
+                                final var len = filledBuf.remaining();
+                                for (var pos = filePos; filledBuf.hasRemaining();) {
+                                    pos += channel.write(filledBuf, pos);
+                                }
+                                bytesWritten.addAndGet(len);
+                            }
+                        }
+                    } catch (final IOException e) {
+                        writeException = e;
+                        throw e;
+                    } finally {
+                        returnBuffer(filledBuf);
+                        release();
+                    }
+                });
+            }
+        }
+
+        /** Release one pending reference, and close the file once there are none left. */
+        private void release() throws IOException {
+            if (numPending.decrementAndGet() == 0) {
+                if (writeException == null && !aborted) {
+                    // Create the file if it is empty
+                    getFileChannel();
+                }
+                synchronized (this) {
+                    if (fileChannel != null) {
+                        fileChannel.close();
+                        if (writeException != null || aborted) {
+                            // Don't leave a partly written file behind
+                            Files.deleteIfExists(path);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (writeException != null) {
+                throw writeException;
+            }
+            final var len = src.remaining();
+            while (src.hasRemaining()) {
+                if (buf == null) {
+                    buf = takeBuffer();
+                }
+                final var n = Math.min(src.remaining(), buf.remaining());
+                final var srcLimit = src.limit();
+                src.limit(src.position() + n);
+                buf.put(src);
+                src.limit(srcLimit);
+                if (!buf.hasRemaining()) {
+                    flush();
+                }
+            }
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        /**
+         * Abandon the file, discarding any data not yet written, and close the channel. The file is deleted, if it
+         * was created, once the writes already queued have finished.
+         */
+        void abort() throws IOException {
+            aborted = true;
+            if (buf != null) {
+                returnBuffer(buf);
+                buf = null;
+            }
+            close();
+        }
+
+        /** Queue the last buffer, and close the file once all buffers have been written. */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                flush();
+                if (buf != null) {
+                    // Unused buffer
+                    returnBuffer(buf);
+                    buf = null;
+                }
+                // Creating and closing the file are left to the writer threads, like writing
+                submit(this::release);
+            }
+        }
+    }
+
+    /** Wait for all queued writes to complete, and stop the writer threads. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (int i = 0; i < numWriters; i++) {
+                writeTasks.put(EXIT);
+            }
+            writersFinished.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        endTimeNanos = System.nanoTime();
+        writerExecutor.close();
+    }
+
+    /** The number of write requests that failed. */
+    int getNumFailed() {
+        return numFailed.get();
+    }
+
+    /** The first exception thrown by a write request, or null if none. */
+    Exception getFirstException() {
+        return firstException.get();
+    }
+
+    /**
+     * The utilization of each stage of the pipeline, for numInflateThreads inflate threads, after the pipeline
+     * has been closed. Inflate threads are counted as busy except while waiting for a free buffer.
+     */
+    String getUtilization(final int numInflateThreads) {
+        final var elapsedNanos = Math.max(1, endTimeNanos - startTimeNanos);
+        final var waitFraction = waitNanos.get() / ((double) elapsedNanos * numInflateThreads);
+        final var writeFraction = writeNanos.get() / ((double) elapsedNanos * numWriters);
+        return String.format(
+                "Inflate stage: %d threads, %.0f%% utilized (%.0f%% waiting for write buffers); "
+                        + "write stage: %d threads, %.0f%% utilized, %d bytes written",
+                numInflateThreads, 100 * (1 - waitFraction), 100 * waitFraction, numWriters, 100 * writeFraction,
+                bytesWritten.get());
+    }
+}